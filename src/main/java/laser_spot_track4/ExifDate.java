@@ -0,0 +1,194 @@
+package laser_spot_track4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+
+/*
+ * Creation time of an image from the EXIF DateTimeOriginal tag, read from the header only: the APP1
+ * segment of a JPEG file or the first IFDs of a TIFF file, found in the first bytes of the file
+ * (a small block, then HEADER_BYTES if the tags lie further), without parsing the other metadata.
+ * The time is the one ExifSubIFDDirectory.getDateOriginal() gives: the subseconds and the time offset
+ * tags are applied, and a time without offset is taken as UTC. Images the header reader does not
+ * understand (other formats, unusual date strings) are read with the metadata-extractor library.
+ */
+final class ExifDate {
+
+	static final int FIRST_BYTES = 16 * 1024, HEADER_BYTES = 128 * 1024;
+	private static final int TAG_EXIF_IFD = 0x8769, TAG_DATETIME_ORIGINAL = 0x9003,
+			TAG_OFFSET_TIME_ORIGINAL = 0x9011, TAG_SUBSECOND_TIME_ORIGINAL = 0x9291;
+	// the header reader gives up, the library decides
+	private static final class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private ExifDate() {
+	}
+
+	/** Creation time of the image file, or null if it has none */
+	static Instant read(File file) {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] header = new byte[(int) Math.min(in.length(), FIRST_BYTES)];
+			in.readFully(header);
+			try {
+				return parse(ByteBuffer.wrap(header));
+			} catch (Unsupported | RuntimeException e) {
+				if (header.length == in.length()) throw e;
+			}
+			header = new byte[(int) Math.min(in.length(), HEADER_BYTES)];
+			in.seek(0);
+			in.readFully(header);
+			return parse(ByteBuffer.wrap(header));
+		} catch (Unsupported | IOException | RuntimeException e) {
+			try {
+				return dateOriginal(ImageMetadataReader.readMetadata(file));
+			} catch (Exception e1) {
+				return null;
+			}
+		}
+	}
+
+	/** Creation time of the image file read into memory, or null if it has none */
+	static Instant read(byte[] bytes) {
+		try {
+			return parse(ByteBuffer.wrap(bytes));
+		} catch (Unsupported | RuntimeException e) {
+			try {
+				return dateOriginal(ImageMetadataReader.readMetadata(new ByteArrayInputStream(bytes), bytes.length));
+			} catch (Exception e1) {
+				return null;
+			}
+		}
+	}
+
+	private static Instant dateOriginal(Metadata metadata) {
+		ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+		return directory == null || directory.getDateOriginal() == null ? null : directory.getDateOriginal().toInstant();
+	}
+
+	private static Instant parse(ByteBuffer data) throws Unsupported {
+
+		if (data.limit() < 8) throw new Unsupported();
+		int b0 = data.get(0) & 0xff, b1 = data.get(1) & 0xff;
+		if (b0 == 0xff && b1 == 0xd8) return parseJpeg(data);
+		if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) return parseTiff(data.slice());
+		throw new Unsupported();
+	}
+
+	// Finds the Exif APP1 segment among the segments before the image data
+	private static Instant parseJpeg(ByteBuffer data) throws Unsupported {
+
+		data.order(ByteOrder.BIG_ENDIAN);
+		int pos = 2;
+		while (pos + 4 <= data.limit()) {
+			if ((data.get(pos) & 0xff) != 0xff) throw new Unsupported();
+			int marker = data.get(pos + 1) & 0xff;
+			if (marker == 0xff) {
+				pos++;
+				continue;
+			}
+			// start of scan or end of image: no EXIF in the header
+			if (marker == 0xda || marker == 0xd9) return null;
+			int length = data.getShort(pos + 2) & 0xffff;
+			if (pos + 2 + length > data.limit()) throw new Unsupported();
+			if (marker == 0xe1 && length >= 8 && data.get(pos + 4) == 'E' && data.get(pos + 5) == 'x'
+					&& data.get(pos + 6) == 'i' && data.get(pos + 7) == 'f' && data.get(pos + 8) == 0 && data.get(pos + 9) == 0) {
+				data.position(pos + 10);
+				data.limit(pos + 2 + length);
+				return parseTiff(data.slice());
+			}
+			pos += 2 + length;
+		}
+		throw new Unsupported();
+	}
+
+	// IFD0, then the Exif IFD; offsets are relative to the TIFF header at position 0
+	private static Instant parseTiff(ByteBuffer tiff) throws Unsupported {
+
+		tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		if (tiff.getShort(2) != 42) throw new Unsupported();
+		int exif = findEntry(tiff, tiff.getInt(4), TAG_EXIF_IFD);
+		if (exif < 0) return null;
+		int exifIfd = tiff.getInt(exif + 8);
+		int date = findEntry(tiff, exifIfd, TAG_DATETIME_ORIGINAL);
+		if (date < 0) return null;
+
+		String dateString = ascii(tiff, date);
+		if (dateString.length() != 19 || dateString.charAt(4) != ':' || dateString.charAt(7) != ':' || dateString.charAt(10) != ' '
+				|| dateString.charAt(13) != ':' || dateString.charAt(16) != ':') throw new Unsupported();
+		LocalDateTime time;
+		try {
+			time = LocalDateTime.of(number(dateString, 0, 4), number(dateString, 5, 7), number(dateString, 8, 10),
+					number(dateString, 11, 13), number(dateString, 14, 16), number(dateString, 17, 19));
+		} catch (DateTimeException e) {
+			throw new Unsupported();
+		}
+
+		ZoneOffset offset = ZoneOffset.UTC;
+		int offsetEntry = findEntry(tiff, exifIfd, TAG_OFFSET_TIME_ORIGINAL);
+		if (offsetEntry >= 0) {
+			String s = ascii(tiff, offsetEntry);
+			if (s.matches("[\\+\\-]\\d\\d:\\d\\d")) {
+				try {
+					offset = ZoneOffset.of(s);
+				} catch (DateTimeException e) {
+					throw new Unsupported();
+				}
+			}
+		}
+
+		int subsecondEntry = findEntry(tiff, exifIfd, TAG_SUBSECOND_TIME_ORIGINAL);
+		if (subsecondEntry >= 0) {
+			String s = ascii(tiff, subsecondEntry);
+			if (!s.matches("\\d+")) throw new Unsupported();
+			int millisecond = (int) (Double.parseDouble("." + s) * 1000);
+			time = time.withNano(millisecond * 1000000);
+		}
+		return time.toInstant(offset);
+	}
+
+	// Position of the IFD entry of the tag, or -1
+	private static int findEntry(ByteBuffer tiff, int ifd, int tag) throws Unsupported {
+		if (ifd < 8 || ifd + 2 > tiff.limit()) throw new Unsupported();
+		int count = tiff.getShort(ifd) & 0xffff;
+		if (ifd + 2 + 12 * count > tiff.limit()) throw new Unsupported();
+		for (int i = 0, entry = ifd + 2; i < count; i++, entry += 12)
+			if ((tiff.getShort(entry) & 0xffff) == tag) return entry;
+		return -1;
+	}
+
+	// Value of an ASCII entry up to the first null character
+	private static String ascii(ByteBuffer tiff, int entry) throws Unsupported {
+		if (tiff.getShort(entry + 2) != 2) throw new Unsupported();
+		int count = tiff.getInt(entry + 4);
+		int pos = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+		if (count < 0 || pos < 0 || pos + count > tiff.limit()) throw new Unsupported();
+		byte[] b = new byte[count];
+		for (int i = 0; i < count; i++) b[i] = tiff.get(pos + i);
+		int n = 0;
+		while (n < count && b[n] != 0) n++;
+		return new String(b, 0, n, StandardCharsets.US_ASCII);
+	}
+
+	private static int number(String s, int start, int end) throws Unsupported {
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') throw new Unsupported();
+			n = 10 * n + c - '0';
+		}
+		return n;
+	}
+}
@@ -0,0 +1,273 @@
+package laser_spot_track4;
+
+import ij.Prefs;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/*
+ * Template matching of large search windows in the frequency domain.
+ * The result map is computed in horizontal bands: every band is correlated with the template
+ * through one DFT product, and the window sums needed by the SQDIFF, CCOEFF and normalized methods
+ * come from the integral images of the band (see MatchScores). Bands are independent, so they are
+ * spread over the calling thread and one shared pool of ImageJ worker threads; matchTemplate runs
+ * a large window on one thread only. The statistics and the spectra of the template are kept in
+ * Spectra by the caller while the template and the DFT size do not change.
+ * The result map can be used in place of the one of matchTemplate for the methods 0-5.
+ */
+final class FftMatcher implements Runnable {
+
+	// window area x template area from which the banded DFT path is used
+	static final double CROSSOVER = 1.0e9;
+	// minimum number of result rows correlated per DFT
+	static final int BAND_ROWS = 256;
+
+	private static ThreadPoolExecutor executor;
+
+	private final Mat img, result;
+	private final int cn, iw, tw, th, rw, rh, bh, dw, dh, bands;
+	private final MatchScores scores;
+	private final double[] imgMean;
+	private final Mat[] tplSpectra;
+	private final AtomicInteger nextBand = new AtomicInteger();
+	private int doneBands = 0;
+	private volatile Throwable failure;
+
+	/**
+	 * Statistics and DFT spectra of the zero mean channels of a template, for one DFT size.
+	 * The Mats are allocated outside of any PointerScope and freed by close().
+	 */
+	static final class Spectra implements AutoCloseable {
+
+		final int dw, dh;
+		final double[] mean, sdv;
+		final Mat[] planes;
+
+		private Spectra(Mat templ, int dw, int dh) {
+
+			this.dw = dw;
+			this.dh = dh;
+			int cn = templ.channels(), tw = templ.cols(), th = templ.rows();
+			mean = new double[cn];
+			sdv = new double[cn];
+			planes = new Mat[cn];
+			for (int k = 0; k < cn; k++) planes[k] = new Mat();
+			PointerScope scope = new PointerScope();
+			try {
+				Mat tMean = new Mat(), tSdv = new Mat(), plane = new Mat();
+				meanStdDev(templ, tMean, tSdv);
+				new DoublePointer(tMean.data()).get(mean);
+				new DoublePointer(tSdv.data()).get(sdv);
+				MatVector tplCh = new MatVector();
+				split(templ, tplCh);
+				for (int k = 0; k < cn; k++) {
+					tplCh.get(k).convertTo(plane, CV_32F, 1, -mean[k]);
+					copyMakeBorder(plane, planes[k], 0, dh - th, 0, dw - tw, BORDER_CONSTANT, new Scalar(0.0));
+					dft(planes[k], planes[k], 0, th);
+				}
+			} finally {
+				scope.close();
+			}
+		}
+
+		long byteSize() {
+			long bytes = 0;
+			for (Mat plane : planes) bytes += MatchWorkspace.byteSize(plane);
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			for (Mat plane : planes) plane.close();
+		}
+	}
+
+	/** True if the DFT correlation should be used for this window and template */
+	static boolean preferred(Mat img, Mat templ) {
+		if (Prefs.getThreads() < 2) return false;	// on one thread matchTemplate is faster
+		if (img.cols() < templ.cols() || img.rows() < templ.rows()) return false;
+		// a single band runs on one thread, where matchTemplate is faster
+		int th = templ.rows(), rh = img.rows() - th + 1;
+		if (rh <= bandHeight(rh, th)) return false;
+		return (double) img.cols() * img.rows() * templ.cols() * templ.rows() >= CROSSOVER;
+	}
+
+	// result rows of a band: at least BAND_ROWS, filling the optimal DFT height
+	private static int bandHeight(int rh, int th) {
+		int rows = Math.min(rh, Math.max(BAND_ROWS, 2 * th));
+		return getOptimalDFTSize(rows + th - 1) - th + 1;
+	}
+
+	/**
+	 * Same contract as matchTemplate(img, templ, result, method) for 1 and 3 channel images.
+	 * @param spectra spectra of the template from the previous call, or null
+	 * @return the spectra of the template for the next call, the given ones if the DFT size did not change
+	 */
+	static Spectra matchTemplate(Mat img, Mat templ, Mat result, int method, Spectra spectra) {
+
+		int th = templ.rows(), rh = img.rows() - th + 1;
+		int dw = getOptimalDFTSize(img.cols()), dh = bandHeight(rh, th) + th - 1;
+		if (spectra == null || spectra.dw != dw || spectra.dh != dh) {
+			if (spectra != null) spectra.close();
+			spectra = new Spectra(templ, dw, dh);
+		}
+		result.create(rh, img.cols() - templ.cols() + 1, CV_32FC1);
+		PointerScope scope = new PointerScope();
+		try {
+			FftMatcher matcher = new FftMatcher(img, templ, result, method, spectra);
+			if (matcher.scores.flat) {
+				result.put(new Scalar(1.0));	// flat template, as in OpenCV
+				return spectra;
+			}
+			int helpers = Math.min(Prefs.getThreads(), matcher.bands) - 1;
+			Future<?>[] futures = new Future<?>[helpers];
+			for (int i = 0; i < helpers; i++) futures[i] = executor().submit(matcher);
+			matcher.run();
+			// helpers not started yet find no band left, the bands taken by the others are waited for
+			synchronized (matcher) {
+				while (matcher.doneBands < Math.min(matcher.nextBand.get(), matcher.bands)) {
+					try {
+						matcher.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+			}
+			if (matcher.failure != null) throw new RuntimeException(matcher.failure);
+		} finally {
+			scope.close();
+		}
+		return spectra;
+	}
+
+	// one pool for all matches, bounded by the ImageJ thread setting; the calling thread takes bands too
+	private static synchronized ThreadPoolExecutor executor() {
+		int nThreads = Math.max(1, Prefs.getThreads() - 1);
+		if (executor == null || executor.getMaximumPoolSize() != nThreads) {
+			if (executor != null) executor.shutdown();
+			executor = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				int count = 0;
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LaserSpotTrack-dft-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private FftMatcher(Mat img, Mat templ, Mat result, int method, Spectra spectra) {
+
+		this.img = img;
+		this.result = result;
+		cn = img.channels();
+		iw = img.cols();
+		tw = templ.cols();
+		th = templ.rows();
+		rw = iw - tw + 1;
+		rh = img.rows() - th + 1;
+		dw = spectra.dw;
+		dh = spectra.dh;
+		bh = dh - th + 1;
+		bands = (rh + bh - 1) / bh;
+		scores = new MatchScores(method, tw, th, spectra.mean, spectra.sdv);
+		tplSpectra = spectra.planes;
+
+		Scalar mean = mean(img);
+		imgMean = new double[cn];
+		for (int k = 0; k < cn; k++) imgMean[k] = mean.get(k);
+	}
+
+	@Override
+	public void run() {
+		PointerScope scope = new PointerScope();
+		try {
+			Mat spectrum = new Mat(), plane = new Mat(), plane64 = new Mat(), corr = new Mat();
+			Mat sum = new Mat(), sqsum = new Mat();
+			MatVector imgCh = new MatVector();
+			// every band taken is counted, after a failure the remaining ones are skipped
+			for (int band = nextBand.getAndIncrement(); band < bands; band = nextBand.getAndIncrement()) {
+				try {
+					if (failure == null) band(band * bh, spectrum, plane, plane64, corr, sum, sqsum, imgCh);
+				} catch (Throwable t) {
+					failure = t;
+				} finally {
+					synchronized (this) {
+						doneBands++;
+						notifyAll();
+					}
+				}
+			}
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			scope.close();
+		}
+	}
+
+	/** Correlates the band of result rows from y0 and turns it into scores */
+	private void band(int y0, Mat spectrum, Mat plane, Mat plane64, Mat corr, Mat sum, Mat sqsum, MatVector imgCh) {
+
+		int rows = Math.min(bh, rh - y0), inRows = rows + th - 1;
+		Mat input = img.apply(new Rect(0, y0, iw, inRows));
+
+		// correlation of the zero mean template with the zero mean image, summed over the channels.
+		// Removing both means keeps the magnitudes small, so single precision DFTs stay accurate
+		corr.create(rows, rw, CV_64FC1);
+		corr.put(new Scalar(0.0));
+		split(input, imgCh);
+		for (int k = 0; k < cn; k++) {
+			imgCh.get(k).convertTo(plane, CV_32F, 1, -imgMean[k]);
+			copyMakeBorder(plane, spectrum, 0, dh - inRows, 0, dw - iw, BORDER_CONSTANT, new Scalar(0.0));
+			dft(spectrum, spectrum, 0, inRows);
+			mulSpectrums(spectrum, tplSpectra[k], spectrum, 0, true);
+			dft(spectrum, spectrum, DFT_INVERSE | DFT_SCALE | DFT_REAL_OUTPUT, rows);
+			spectrum.apply(new Rect(0, 0, rw, rows)).convertTo(plane64, CV_64F);
+			add(corr, plane64, corr);
+		}
+
+		if (scores.needSquares) integral2(input, sum, sqsum, CV_64F, CV_64F);
+		else integral(input, sum, CV_64F);
+		bandScores(y0, rows, corr, sum, sqsum);
+	}
+
+	/** Turns the correlations of a band into the scores of the method */
+	private void bandScores(int y0, int rows, Mat corr, Mat sum, Mat sqsum) {
+
+		int sw = (iw + 1) * cn;
+		double[] s0 = new double[sw], s1 = new double[sw], q0 = new double[sw], q1 = new double[sw];
+		double[] c = new double[rw];
+		float[] row = new float[rw];
+		for (int y = 0; y < rows; y++) {
+			new DoublePointer(sum.ptr(y)).get(s0);
+			new DoublePointer(sum.ptr(y + th)).get(s1);
+			if (scores.needSquares) {
+				new DoublePointer(sqsum.ptr(y)).get(q0);
+				new DoublePointer(sqsum.ptr(y + th)).get(q1);
+			}
+			new DoublePointer(corr.ptr(y)).get(c);
+			scores.row(c, s0, s1, q0, q1, row, rw);
+			new FloatPointer(result.ptr(y0 + y)).put(row);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package laser_spot_track4;
+
+import ij.plugin.FolderOpener;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Monitoring of the image folder for new images, driven by the events of a WatchService instead of
+ * listing the folder: only the files created or modified since the last poll are looked at.
+ * New files are returned once their size is not zero and has not changed for SETTLE_MS, so images
+ * still being written are not read, and in the order of FolderOpener after the last image returned;
+ * files sorted before it are ignored, as well as files FolderOpener does not open. A file that stays
+ * empty or unreadable for STALE_MS is returned anyway, for the reader to reject it, so that the
+ * images after it are not held back.
+ * The folder is listed only at the start and when the WatchService lost events.
+ */
+final class FolderWatcher implements AutoCloseable {
+
+	static final long SETTLE_MS = 200;
+	// an empty or locked file left behind by the camera is given up on after this time
+	static final long STALE_MS = 10000;
+	private static final long DELETED = -2;
+
+	private final Path directory;
+	private final WatchService watchService;
+	private final FolderOpener opener = new FolderOpener();
+	private String lastName;
+	// new files: name -> {size, time of the last size change}
+	private final HashMap<String, long[]> pending = new HashMap<String, long[]>();
+
+	/**
+	 * @param lastName the last image analysed, the images sorted after it are already pending
+	 */
+	FolderWatcher(String directory, String lastName) throws IOException {
+		this.directory = Paths.get(directory);
+		this.lastName = lastName;
+		watchService = FileSystems.getDefault().newWatchService();
+		this.directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		// files written before the registration have no event
+		scan();
+	}
+
+	/**
+	 * Waits at most timeout ms for new files and returns the images ready to be read, in order.
+	 * Returns sooner when files are waiting for their size to settle.
+	 */
+	List<String> poll(long timeout) throws InterruptedException {
+
+		WatchKey key = watchService.poll(pending.isEmpty() ? timeout : Math.min(timeout, SETTLE_MS), TimeUnit.MILLISECONDS);
+		while (key != null) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) scan();
+				else add(((Path) event.context()).getFileName().toString());
+			}
+			key.reset();
+			key = watchService.poll();
+		}
+
+		List<String> ready = new ArrayList<String>();
+		if (pending.isEmpty()) return ready;
+		String[] names = pending.keySet().toArray(new String[pending.size() + 1]);
+		names[names.length - 1] = lastName;
+		names = opener.sortFileList(names);
+
+		long now = System.currentTimeMillis();
+		boolean after = false, blocked = false;
+		for (String name : names) {
+			if (name.equals(lastName)) {
+				after = true;
+				continue;
+			}
+			if (!after) {
+				pending.remove(name);
+				continue;
+			}
+			long[] state = pending.get(name);
+			long size = size(name);
+			if (size == DELETED) {
+				pending.remove(name);
+				continue;
+			}
+			if (size != state[0]) {
+				state[0] = size;
+				state[1] = now;
+			}
+			// later images wait for this one, their sizes are followed meanwhile; an empty file is just created
+			long unchanged = now - state[1];
+			if (unchanged < SETTLE_MS || size <= 0 && unchanged < STALE_MS) blocked = true;
+			if (blocked) continue;
+			pending.remove(name);
+			ready.add(name);
+		}
+		if (!ready.isEmpty()) lastName = ready.get(ready.size() - 1);
+		return ready;
+	}
+
+	private void scan() {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) add(file.getFileName().toString());
+		} catch (IOException e) {
+		}
+	}
+
+	// A file FolderOpener opens, not yet pending
+	private void add(String name) {
+		if (name.equals(lastName) || pending.containsKey(name)) return;
+		if (opener.trimFileList(new String[] {name}) == null || Files.isDirectory(directory.resolve(name))) return;
+		pending.put(name, new long[] {size(name), System.currentTimeMillis()});
+	}
+
+	// Size of the file, -1 if it cannot be read now
+	private long size(String name) {
+		try {
+			return Files.size(directory.resolve(name));
+		} catch (NoSuchFileException e) {
+			return DELETED;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+		}
+	}
+}
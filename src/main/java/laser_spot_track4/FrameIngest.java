@@ -0,0 +1,286 @@
+package laser_spot_track4;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * One time-lapse image read for tracking: the file is read once into memory, the header is checked
+ * against the reference slice before decoding, the pixels are decoded once and the EXIF creation time
+ * is parsed from the same bytes. JPEG images are decoded like ImageJ's Opener does (gray JPEGs
+ * stored as RGB give 8-bit images), TIFF images by ImageJ from the memory copy; other formats
+ * are opened from the file by the Opener.
+ * An image may also be decoded only in given regions, the search areas of the targets: the other
+ * pixels of the full size processor are left at zero until decodeAll() decodes the whole image
+ * into the same processor. Uncompressed TIFF images are read row by row from the file within the
+ * regions, JPEG images are decoded down to the bottom of the bounding box of the regions and only
+ * that box is converted. Other images are decoded in full.
+ */
+final class FrameIngest {
+
+	final String path;
+	final ImageProcessor processor;
+	private byte[] bytes;
+	// decoded regions, null when the whole image is decoded
+	private Rectangle[] regions;
+
+	private FrameIngest(String path, ImageProcessor processor, byte[] bytes, Rectangle[] regions) {
+		this.path = path;
+		this.processor = processor;
+		this.bytes = bytes;
+		this.regions = regions;
+	}
+
+	/** Reads the image, or returns null if it is not a readable image of the given size and bit depth */
+	static FrameIngest read(String path, int width, int height, int bitDepth) {
+
+		File file = new File(path);
+		if (!file.isFile()) return null;
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			return null;
+		}
+
+		ImagePlus imp = null;
+		if (isJpeg(bytes)) imp = decodeJpeg(bytes, file.getName(), width, height);
+		else {
+			if (isTiff(bytes)) imp = new Opener().openTiff(new ByteArrayInputStream(bytes), file.getName());
+			if (imp == null) imp = new Opener().openImage(path);
+		}
+
+		if (imp == null || imp.getWidth() != width || imp.getHeight() != height || imp.getBitDepth() != bitDepth) return null;
+		return new FrameIngest(path, imp.getProcessor(), bytes, null);
+	}
+
+	/** Image decoded before, e.g. kept by the FrameStore */
+	static FrameIngest stored(String path, ImageProcessor processor) {
+		return new FrameIngest(path, processor, null, null);
+	}
+
+	/**
+	 * Reads the image decoding only the given regions if its format allows it, otherwise as read() does.
+	 * Returns null if it is not a readable image of the given size and bit depth.
+	 */
+	static FrameIngest read(String path, int width, int height, int bitDepth, Rectangle[] regions) {
+
+		if (regions == null) return read(path, width, height, bitDepth);
+		File file = new File(path);
+		if (!file.isFile()) return null;
+		byte[] header = new byte[8];
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if (in.length() < header.length) return null;
+			in.readFully(header);
+		} catch (IOException e) {
+			return null;
+		}
+
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		Rectangle[] clipped = new Rectangle[regions.length];
+		for (int i = 0; i < regions.length; i++) clipped[i] = regions[i].intersection(bounds);
+
+		ImageProcessor ip = null;
+		if (isTiff(header)) ip = readTiffRegions(file, width, height, bitDepth, clipped);
+		else if (isJpeg(header)) {
+			Rectangle box = new Rectangle();
+			for (Rectangle r : clipped) if (!r.isEmpty()) box = box.isEmpty() ? new Rectangle(r) : box.union(r);
+			clipped = new Rectangle[] {box};
+			ip = readJpegRegion(file, width, height, bitDepth, box);
+		}
+		if (ip == null) return read(path, width, height, bitDepth);
+		return new FrameIngest(path, ip, null, clipped);
+	}
+
+	/** True if the area is decoded */
+	synchronized boolean covers(Rectangle area) {
+		if (regions == null) return true;
+		for (Rectangle r : regions) if (r.contains(area)) return true;
+		return false;
+	}
+
+	/** True if the whole image is decoded */
+	synchronized boolean complete() {
+		return regions == null;
+	}
+
+	/**
+	 * Decodes the whole image into the processor of the regions; the pixels already decoded keep
+	 * their values. The tracker calls it when no match reads the processor, and uploads the new pixels
+	 * before the next match. Returns true if pixels were decoded.
+	 */
+	synchronized boolean decodeAll() {
+		if (regions == null) return false;
+		FrameIngest full = read(path, processor.getWidth(), processor.getHeight(), processor.getBitDepth());
+		if (full == null) return false;
+		Object src = full.processor.getPixels();
+		System.arraycopy(src, 0, processor.getPixels(), 0, processor.getPixelCount());
+		bytes = full.bytes;
+		regions = null;
+		return true;
+	}
+
+	/** Bytes held: the decoded pixels and the file content */
+	synchronized long byteSize() {
+		int bitDepth = processor.getBitDepth();
+		return (long) processor.getPixelCount() * (bitDepth == 24 ? 4 : bitDepth / 8) + (bytes == null ? 0 : bytes.length);
+	}
+
+	/** EXIF creation time of the image, parsed from the bytes read with the pixels or from the file for regions */
+	synchronized Instant shotTime() {
+		return bytes == null ? ExifDate.read(new File(path)) : ExifDate.read(bytes);
+	}
+
+	// Reads the rows of the regions of an uncompressed, single sample per channel TIFF image
+	private static ImageProcessor readTiffRegions(File file, int width, int height, int bitDepth, Rectangle[] regions) {
+
+		FileInfo fi;
+		try {
+			FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+			if (info == null || info.length == 0) return null;
+			fi = info[0];
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+		if (fi.compression != FileInfo.COMPRESSION_NONE || fi.whiteIsZero || fi.width != width || fi.height != height) return null;
+
+		ImageProcessor ip;
+		int bpp;
+		switch (fi.fileType) {
+		case FileInfo.GRAY8: ip = new ByteProcessor(width, height); bpp = 1; break;
+		case FileInfo.GRAY16_UNSIGNED: ip = new ShortProcessor(width, height); bpp = 2; break;
+		case FileInfo.GRAY32_FLOAT: ip = new FloatProcessor(width, height); bpp = 4; break;
+		case FileInfo.RGB: ip = new ColorProcessor(width, height); bpp = 3; break;
+		default: return null;
+		}
+		if (ip.getBitDepth() != bitDepth) return null;
+
+		long rowBytes = (long) width * bpp;
+		int rowsPerStrip = fi.rowsPerStrip > 0 ? fi.rowsPerStrip : height;
+		boolean strips = fi.stripOffsets != null && fi.stripOffsets.length >= (height + rowsPerStrip - 1) / rowsPerStrip;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] buffer = new byte[0];
+			for (Rectangle r : regions) {
+				if (r.isEmpty()) continue;
+				int length = r.width * bpp;
+				if (buffer.length < length) buffer = new byte[length];
+				for (int y = r.y; y < r.y + r.height; y++) {
+					long row = strips ? (fi.stripOffsets[y / rowsPerStrip] & 0xffffffffL) + (y % rowsPerStrip) * rowBytes 
+							: fi.getOffset() + y * rowBytes;
+					in.seek(row + (long) r.x * bpp);
+					in.readFully(buffer, 0, length);
+					putRow(ip, fi.fileType, fi.intelByteOrder, buffer, r.x + y * width, r.width);
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return ip;
+	}
+
+	private static void putRow(ImageProcessor ip, int fileType, boolean intel, byte[] b, int offset, int n) {
+		switch (fileType) {
+		case FileInfo.GRAY8:
+			System.arraycopy(b, 0, (byte[]) ip.getPixels(), offset, n);
+			break;
+		case FileInfo.GRAY16_UNSIGNED: {
+			short[] pixels = (short[]) ip.getPixels();
+			for (int i = 0, j = 0; i < n; i++, j += 2)
+				pixels[offset + i] = (short) (intel ? (b[j] & 0xff) | (b[j + 1] & 0xff) << 8 : (b[j] & 0xff) << 8 | (b[j + 1] & 0xff));
+			break;
+		}
+		case FileInfo.GRAY32_FLOAT: {
+			float[] pixels = (float[]) ip.getPixels();
+			for (int i = 0, j = 0; i < n; i++, j += 4) {
+				int bits = intel ? (b[j] & 0xff) | (b[j + 1] & 0xff) << 8 | (b[j + 2] & 0xff) << 16 | (b[j + 3] & 0xff) << 24
+						: (b[j] & 0xff) << 24 | (b[j + 1] & 0xff) << 16 | (b[j + 2] & 0xff) << 8 | (b[j + 3] & 0xff);
+				pixels[offset + i] = Float.intBitsToFloat(bits);
+			}
+			break;
+		}
+		default: {
+			int[] pixels = (int[]) ip.getPixels();
+			for (int i = 0, j = 0; i < n; i++, j += 3)
+				pixels[offset + i] = 0xff000000 | (b[j] & 0xff) << 16 | (b[j + 1] & 0xff) << 8 | (b[j + 2] & 0xff);
+		}
+		}
+	}
+
+	// Decodes the box of a JPEG image; the decoder stops at the bottom of the box
+	private static ImageProcessor readJpegRegion(File file, int width, int height, int bitDepth, Rectangle box) {
+
+		if (box.isEmpty()) return null;
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				if (reader.getWidth(0) != width || reader.getHeight(0) != height) return null;
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(box);
+				ImagePlus imp = new ImagePlus(file.getName(), reader.read(0, param));
+				// a gray box of a colour image gives 8 bits, then the whole image decides
+				if (imp.getType() == ImagePlus.COLOR_RGB) Opener.convertGrayJpegTo8Bits(imp);
+				if (imp.getBitDepth() != bitDepth || imp.getWidth() != box.width || imp.getHeight() != box.height) return null;
+				ImageProcessor ip = imp.getProcessor().createProcessor(width, height);
+				ip.insert(imp.getProcessor(), box.x, box.y);
+				return ip;
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static ImagePlus decodeJpeg(byte[] bytes, String name, int width, int height) {
+
+		try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				// the size is in the header, images of another size are not decoded
+				if (reader.getWidth(0) != width || reader.getHeight(0) != height) return null;
+				ImagePlus imp = new ImagePlus(name, reader.read(0));
+				if (imp.getType() == ImagePlus.COLOR_RGB) Opener.convertGrayJpegTo8Bits(imp);
+				return imp;
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static boolean isJpeg(byte[] b) {
+		return b.length > 3 && (b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xd8;
+	}
+
+	private static boolean isTiff(byte[] b) {
+		return b.length > 4 && ((b[0] == 'I' && b[1] == 'I' && b[2] == 42 && b[3] == 0)
+				|| (b[0] == 'M' && b[1] == 'M' && b[2] == 0 && b[3] == 42));
+	}
+}
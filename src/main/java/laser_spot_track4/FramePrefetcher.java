@@ -0,0 +1,148 @@
+package laser_spot_track4;
+
+import java.awt.Rectangle;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Read-ahead of the time-lapse images: the images following the analysed slice are read and decoded
+ * by background threads while the current one is matched, and the decoded images are kept in an LRU
+ * cache bounded in bytes. The cache is keyed by file name, so it stays valid when slices
+ * of bad images are deleted from the stack, and it also serves the slices displayed by the stack.
+ * Images are validated as by FrameIngest.read(); a rejected image is cached as null.
+ * With decoding regions set, images are decoded in the regions current when they are read.
+ */
+final class FramePrefetcher implements AutoCloseable {
+
+	private final String directory;
+	private final int width, height, bitDepth;
+	private final long budget, frameBytes;
+	private final int depth;
+	private final FrameStore store;
+	private volatile Rectangle[] regions;
+	private final ThreadPoolExecutor executor;
+	// access ordered, the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Future<FrameIngest>> cache = new LinkedHashMap<String, Future<FrameIngest>>(16, 0.75f, true);
+
+	/**
+	 * @param budget bytes of decoded images kept in the cache, including those being read
+	 * @param store frames stored by previous runs, read instead of the images, or null
+	 */
+	FramePrefetcher(String directory, int width, int height, int bitDepth, long budget, int nThreads, FrameStore store) {
+		this.directory = directory;
+		this.store = store;
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.budget = budget;
+		frameBytes = (long) width * height * (bitDepth == 24 ? 4 : bitDepth / 8);
+		// the current image and the read-ahead ones fit in the budget
+		depth = (int) Math.max(1, Math.min(16, budget / frameBytes - 1));
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			int count = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LaserSpotTrack-read-" + (++count));
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/** Number of images read ahead */
+	int depth() {
+		return depth;
+	}
+
+	/** Regions decoded in the images read from now on, null to decode the whole images */
+	void setRegions(Rectangle[] regions) {
+		this.regions = regions;
+	}
+
+	/** Returns the image, read now if it was not read ahead, or null if it is not a valid image */
+	FrameIngest get(String name) {
+		Future<FrameIngest> future = request(name);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/** Returns the image if it is already decoded, without waiting */
+	synchronized FrameIngest peek(String name) {
+		Future<FrameIngest> future = cache.get(name);
+		if (future == null || !future.isDone()) return null;
+		try {
+			return future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			return null;
+		}
+	}
+
+	/** Starts reading the images in the background */
+	void prefetch(String... names) {
+		for (String name : names) if (name != null) request(name);
+	}
+
+	private synchronized Future<FrameIngest> request(final String name) {
+		Future<FrameIngest> future = cache.get(name);
+		if (future != null) return future;
+		future = executor.submit(new Callable<FrameIngest>() {
+			@Override
+			public FrameIngest call() {
+				if (store != null) return store.read(name, regions);
+				return FrameIngest.read(Paths.get(directory, name).toString(), width, height, bitDepth, regions);
+			}
+		});
+		cache.put(name, future);
+		trim(name);
+		return future;
+	}
+
+	// Drops the least recently used images beyond the budget, images being read are counted as full ones
+	private void trim(String keep) {
+		long bytes = 0;
+		for (Future<FrameIngest> f : cache.values()) bytes += entryBytes(f);
+		Iterator<Map.Entry<String, Future<FrameIngest>>> it = cache.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Map.Entry<String, Future<FrameIngest>> e = it.next();
+			if (e.getKey().equals(keep)) continue;
+			bytes -= entryBytes(e.getValue());
+			e.getValue().cancel(false);
+			it.remove();
+		}
+	}
+
+	private long entryBytes(Future<FrameIngest> f) {
+		if (!f.isDone()) return frameBytes;
+		try {
+			FrameIngest frame = f.get();
+			return frame == null ? 0 : frame.byteSize();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		executor.shutdownNow();
+		cache.clear();
+	}
+}
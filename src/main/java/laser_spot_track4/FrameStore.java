@@ -0,0 +1,349 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Decoded frames of image sequences kept in one memory-mapped file in the image folder, so that
+ * repeated tracking of a sequence reads the pixels without decoding them. The frames are stored
+ * with the native bit depth at a fixed stride (RGB as the int pixels of ImageJ), one slot per image
+ * name; the slots of the images missing from the store are appended when it is opened, so tracking
+ * from another first image or with images added since keeps the frames already stored. A frame is
+ * valid while the size and modification time of its image file are unchanged. The table of the
+ * frames also keeps the EXIF creation times.
+ *
+ * Layout: a header of HEADER_BYTES (with the number of slots and the offset of the table), the frames
+ * from PAGE, then the table of ENTRY_BYTES per slot and the names of the images. The table is written
+ * when slots are added, and by close() after the frames, so frames written by an interrupted run are
+ * decoded again by the next one. A store of another image size or bit depth is replaced.
+ */
+final class FrameStore implements AutoCloseable {
+
+	static final String FILE_NAME = ".laserspottrack.frames";
+	private static final long MAGIC = 0x4c53544652414d45L; // "LSTFRAME"
+	private static final int VERSION = 2, HEADER_BYTES = 64, ENTRY_BYTES = 32, PAGE = 4096;
+	private static final int PRESENT = 1, TIMED = 2;
+	// frames mapped together, at most 1 GB
+	private static final long CHUNK_BYTES = 1L << 30;
+
+	private final String directory;
+	private final int width, height, bitDepth;
+	private final long frameBytes;
+	private final int framesPerChunk;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+	// slots of the images of this run
+	private int[] listed;
+	private int count = 0;
+	private long tableOffset = PAGE;
+	private MappedByteBuffer[] chunks;
+	private String[] names = new String[0];
+	// per slot: flags, file size, file time, time seconds, time nanoseconds
+	private int[] flags = new int[0], nanos = new int[0];
+	private long[] fileSizes = new long[0], fileTimes = new long[0], seconds = new long[0];
+	private boolean dirty = false, closed = false;
+
+	private FrameStore(String directory, RandomAccessFile file, int width, int height, int bitDepth) {
+		this.directory = directory;
+		this.file = file;
+		channel = file.getChannel();
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		frameBytes = (long) width * height * bytesPerPixel(bitDepth);
+		framesPerChunk = (int) Math.max(1, Math.min(Integer.MAX_VALUE, CHUNK_BYTES / frameBytes));
+	}
+
+	/**
+	 * Opens the store of the images in the folder, adding the slots of the images it does not have,
+	 * or creates it if there is none. Returns null if the store cannot be used, e.g. if the disk
+	 * has not enough space.
+	 */
+	static FrameStore open(String directory, List<String> names, int width, int height, int bitDepth) {
+
+		if (bytesPerPixel(bitDepth) == 0 || names.isEmpty()) return null;
+		File path = new File(directory, FILE_NAME);
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "rw");
+			FrameStore store = new FrameStore(directory, file, width, height, bitDepth);
+			boolean valid = store.readTable();
+			if (!valid && file.length() > 0) 
+				IJ.log("Laser Spot Track: the frame store of images of another size is replaced");
+			int stored = store.count;
+			store.addSlots(names);
+			if (!valid || store.count > stored) {
+				long length = store.tableOffset + store.tableBytes();
+				long free = path.getParentFile().getUsableSpace() + (valid ? file.length() : 0);
+				if (free < length) {
+					IJ.log("Laser Spot Track: not enough disk space for the frame store (" + (length >> 20) + " MB)");
+					file.close();
+					if (!valid) path.delete();
+					return null;
+				}
+				if (!valid) file.setLength(0);
+				file.setLength(length);
+				store.dirty = true;
+				store.writeTable();
+			}
+			store.chunks = new MappedByteBuffer[(store.count + store.framesPerChunk - 1) / store.framesPerChunk];
+			return store;
+		} catch (IOException e) {
+			IJ.log("Laser Spot Track: the frame store cannot be used (" + e.getMessage() + ")");
+			try {
+				if (file != null) file.close();
+			} catch (IOException e1) {
+			}
+			return null;
+		}
+	}
+
+	// Slots of the images of this run, new slots after the stored ones; the table moves after them
+	private void addSlots(List<String> list) {
+
+		listed = new int[list.size()];
+		int n = count;
+		for (String name : list) if (!index.containsKey(name)) index.put(name, n++);
+		if (n > count) {
+			names = Arrays.copyOf(names, n);
+			flags = Arrays.copyOf(flags, n);
+			nanos = Arrays.copyOf(nanos, n);
+			fileSizes = Arrays.copyOf(fileSizes, n);
+			fileTimes = Arrays.copyOf(fileTimes, n);
+			seconds = Arrays.copyOf(seconds, n);
+			for (String name : list) {
+				int i = index.get(name);
+				if (i >= count) names[i] = name;
+			}
+			count = n;
+			tableOffset = PAGE + frameBytes * count;
+		}
+		for (int k = 0; k < listed.length; k++) listed[k] = index.get(list.get(k));
+	}
+
+	/**
+	 * Returns the stored frame of the image, or reads the whole image as FrameIngest.read() does and stores it.
+	 * Images that are not in the store are read in the regions.
+	 */
+	FrameIngest read(String name, Rectangle[] regions) {
+
+		String path = Paths.get(directory, name).toString();
+		Integer i = index.get(name);
+		if (i == null) return FrameIngest.read(path, width, height, bitDepth, regions);
+		File source = new File(path);
+		ByteBuffer buffer = null;
+		synchronized (this) {
+			if (!closed && (flags[i] & PRESENT) != 0 && fileSizes[i] == source.length() && fileTimes[i] == source.lastModified()) 
+				buffer = frame(i);
+		}
+		if (buffer != null) return FrameIngest.stored(path, load(buffer));
+		FrameIngest frame = FrameIngest.read(path, width, height, bitDepth);
+		if (frame != null) store(i, source, frame);
+		return frame;
+	}
+
+	/** Creation times of the valid stored frames of this run, added to the index */
+	synchronized void addShotTimes(ShotTimeIndex shotTimes) {
+		for (int i : listed) {
+			if ((flags[i] & PRESENT) == 0) continue;
+			File source = new File(directory, names[i]);
+			if (fileSizes[i] != source.length() || fileTimes[i] != source.lastModified()) continue;
+			shotTimes.put(names[i], (flags[i] & TIMED) != 0 ? Instant.ofEpochSecond(seconds[i], nanos[i]) : null);
+		}
+	}
+
+	private ImageProcessor load(ByteBuffer buffer) {
+		int n = width * height;
+		switch (bitDepth) {
+		case 8: {
+			byte[] pixels = new byte[n];
+			buffer.get(pixels);
+			return new ByteProcessor(width, height, pixels);
+		}
+		case 16: {
+			short[] pixels = new short[n];
+			buffer.asShortBuffer().get(pixels);
+			return new ShortProcessor(width, height, pixels, null);
+		}
+		case 32: {
+			float[] pixels = new float[n];
+			buffer.asFloatBuffer().get(pixels);
+			return new FloatProcessor(width, height, pixels);
+		}
+		default: {
+			int[] pixels = new int[n];
+			buffer.asIntBuffer().get(pixels);
+			return new ColorProcessor(width, height, pixels);
+		}
+		}
+	}
+
+	private void store(int i, File source, FrameIngest frame) {
+
+		Instant time = frame.shotTime();
+		ByteBuffer buffer;
+		synchronized (this) {
+			if (closed) return;
+			buffer = frame(i);
+		}
+		if (buffer == null) return;
+		ImageProcessor ip = frame.processor;
+		switch (bitDepth) {
+		case 8:
+			buffer.put((byte[]) ip.getPixels());
+			break;
+		case 16:
+			buffer.asShortBuffer().put((short[]) ip.getPixels());
+			break;
+		case 32:
+			buffer.asFloatBuffer().put((float[]) ip.getPixels());
+			break;
+		default:
+			buffer.asIntBuffer().put((int[]) ip.getPixels());
+		}
+		synchronized (this) {
+			if (closed) return;
+			flags[i] = PRESENT | (time != null ? TIMED : 0);
+			fileSizes[i] = source.length();
+			fileTimes[i] = source.lastModified();
+			seconds[i] = time != null ? time.getEpochSecond() : 0;
+			nanos[i] = time != null ? time.getNano() : 0;
+			dirty = true;
+		}
+	}
+
+	// View of the frame in its mapped chunk, or null if it cannot be mapped; called with the lock held
+	private ByteBuffer frame(int i) {
+		int c = i / framesPerChunk;
+		try {
+			if (chunks[c] == null) {
+				long start = PAGE + (long) c * framesPerChunk * frameBytes;
+				long size = Math.min(framesPerChunk, count - (long) c * framesPerChunk) * frameBytes;
+				chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		ByteBuffer buffer = chunks[c].duplicate();
+		buffer.position((int) ((i - (long) c * framesPerChunk) * frameBytes));
+		buffer.limit((int) (buffer.position() + frameBytes));
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// Reads the slots of the store, if the file is a store of frames of this size
+	private boolean readTable() throws IOException {
+
+		if (file.length() < PAGE) return false;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		if (header.limit() < HEADER_BYTES || header.getLong() != MAGIC || header.getInt() != VERSION || header.getInt() != width
+				|| header.getInt() != height || header.getInt() != bitDepth) return false;
+		int n = header.getInt();
+		long offset = header.getLong();
+		if (n < 0 || offset != PAGE + frameBytes * n || offset > file.length()
+				|| file.length() - offset > Integer.MAX_VALUE) return false;
+		ByteBuffer table = ByteBuffer.allocate((int) (file.length() - offset)).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(table, offset);
+		table.flip();
+		if (table.limit() < (long) n * ENTRY_BYTES) return false;
+		String[] stored = new String[n];
+		int[] f = new int[n], ns = new int[n];
+		long[] sizes = new long[n], times = new long[n], secs = new long[n];
+		for (int i = 0; i < n; i++) {
+			f[i] = table.getInt();
+			ns[i] = table.getInt();
+			sizes[i] = table.getLong();
+			times[i] = table.getLong();
+			secs[i] = table.getLong();
+		}
+		for (int i = 0; i < n; i++) {
+			if (table.remaining() < 2) return false;
+			int length = table.getShort() & 0xffff;
+			if (table.remaining() < length) return false;
+			byte[] b = new byte[length];
+			table.get(b);
+			stored[i] = new String(b, StandardCharsets.UTF_8);
+		}
+		for (int i = 0; i < n; i++) index.put(stored[i], i);
+		names = stored;
+		flags = f;
+		nanos = ns;
+		fileSizes = sizes;
+		fileTimes = times;
+		seconds = secs;
+		count = n;
+		tableOffset = offset;
+		return true;
+	}
+
+	private long tableBytes() {
+		long bytes = (long) count * ENTRY_BYTES;
+		for (String name : names) bytes += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+		return bytes;
+	}
+
+	private void writeTable() throws IOException {
+
+		ByteBuffer table = ByteBuffer.allocate((int) tableBytes()).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++)
+			table.putInt(flags[i]).putInt(nanos[i]).putLong(fileSizes[i]).putLong(fileTimes[i]).putLong(seconds[i]);
+		for (String name : names) {
+			byte[] b = name.getBytes(StandardCharsets.UTF_8);
+			table.putShort((short) b.length).put(b);
+		}
+		table.flip();
+		while (table.hasRemaining()) channel.write(table, tableOffset + table.position());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(bitDepth).putInt(count).putLong(tableOffset);
+		header.rewind();
+		channel.write(header, 0);
+		dirty = false;
+	}
+
+	private static int bytesPerPixel(int bitDepth) {
+		switch (bitDepth) {
+		case 8: return 1;
+		case 16: return 2;
+		case 24:
+		case 32: return 4;
+		default: return 0;
+		}
+	}
+
+	/** Writes the frames, then the table of the frames written in this run */
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			if (dirty) {
+				for (MappedByteBuffer chunk : chunks) if (chunk != null) chunk.force();
+				writeTable();
+			}
+			file.close();
+		} catch (IOException e) {
+			IJ.log("Laser Spot Track: the frame store was not saved (" + e.getMessage() + ")");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.Macro;
+
+import java.awt.GraphicsEnvironment;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/*
+ * Parameters of a tracking run without dialogs, for batch runs and headless ImageJ. They are given as
+ * macro options with lower-case keys, e.g. run("Laser Spot Track 4", "source=[/data/img0001.jpg] spot=512,300 ..."),
+ * or in a properties file named by the config option; the macro options take precedence.
+ *
+ *   source          the video file, or the first image of the sequence
+ *   refSlice        reference slice, 1 by default
+ *   spot, mark1..4  reference positions x,y of the spot and of the marks, in pixels
+ *   method, templSize, sArea, markDist, subPixel, matchIntensity, pyramidSearch, motionPrediction,
+ *   spotCentroid, regionDecode, exifPrescan, keepFrames, offHeapResults, matcher, nativePipeline
+ *                   matching parameters as in the dialog, the last used values by default
+ *   onFailure       skip (default), keep or stop, for a poor match
+ *   maxSArea        largest search area of the skipped frames, 0 for no limit
+ *   timeStep        seconds between images without EXIF times
+ *   frameRate       frame rate of a video, 0 (default) to use the frame timestamps
+ *   trackStep       tracked images are trackStep apart, 1 by default
+ *   monitor         seconds the folder is watched for new images after the track, 0 by default
+ *   project         project name of the result files
+ *   output          folder of the result files, the folder of the images by default
+ */
+final class HeadlessConfig {
+
+	static final String SKIP = "skip", KEEP = "keep", STOP = "stop";
+
+	private final String options;
+	private final Properties file = new Properties();
+
+	private HeadlessConfig(String options) {
+		this.options = options != null ? options : "";
+	}
+
+	/**
+	 * The parameters of a run without dialogs, or null for an interactive run: the run is without dialogs
+	 * in headless ImageJ, or with a config or a source macro option.
+	 * Throws IOException if the properties file cannot be read.
+	 */
+	static HeadlessConfig read(String options) throws IOException {
+
+		boolean batch = options != null && (Macro.getValue(options, "config", null) != null
+				|| Macro.getValue(options, "source", null) != null);
+		if (!batch && !GraphicsEnvironment.isHeadless()) return null;
+		HeadlessConfig config = new HeadlessConfig(options);
+		String path = Macro.getValue(config.options, "config", null);
+		if (path != null) {
+			try (InputStream in = new FileInputStream(path)) {
+				config.file.load(in);
+			}
+		}
+		return config;
+	}
+
+	String get(String key, String defaultValue) {
+		String value = Macro.getValue(options, key.toLowerCase(), null);
+		if (value == null) value = file.getProperty(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	int getInt(String key, int defaultValue) {
+		return (int) getDouble(key, defaultValue);
+	}
+
+	double getDouble(String key, double defaultValue) {
+		String value = get(key, null);
+		if (value == null) return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			IJ.log("Laser Spot Track: " + key + "=" + value + " is not a number, " + defaultValue + " is used");
+			return defaultValue;
+		}
+	}
+
+	boolean getBoolean(String key, boolean defaultValue) {
+		String value = get(key, null);
+		return value != null ? value.equalsIgnoreCase("true") || value.equals("1") : defaultValue;
+	}
+
+	/** Position x,y of a target, or null if it is missing or malformed */
+	float[] getPoint(String key) {
+		String value = get(key, null);
+		if (value == null) return null;
+		String[] xy = value.split("[,;\\s]+");
+		try {
+			if (xy.length == 2) return new float[] {Float.parseFloat(xy[0]), Float.parseFloat(xy[1])};
+		} catch (NumberFormatException e) {
+		}
+		IJ.log("Laser Spot Track: " + key + "=" + value + " is not a position x,y");
+		return null;
+	}
+}
@@ -0,0 +1,207 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/*
+ * Template matching in plain Java, for systems where the native OpenCV libraries can not be installed.
+ * The correlation of a result row is accumulated template pixel by template pixel as
+ * acc[x] += t * src[x], a loop the JIT compiles to SIMD instructions, and the window sums
+ * come from integral rows kept for the template height only. The scores are computed
+ * by MatchScores, so the result maps are those of OpenCV's matchTemplate.
+ * Pixels are converted like MatBridge does: 16-bit values are scaled by 1/65535,
+ * RGB pixels give three channels.
+ */
+final class JavaMatcher implements TemplateMatcher {
+
+	private ImageProcessor tplIp;
+	private int tw, th, cn;
+	private float[][] tpl;			// zero mean template channels
+	private double[] templMean, templSdv;
+	private MatchScores scores;
+	private float[][] planes;		// zero mean source channels, reused
+	private FloatProcessor result;
+
+	@Override
+	public void setTemplate(ImageProcessor ip) {
+
+		tplIp = ip;
+		tw = ip.getWidth();
+		th = ip.getHeight();
+		tpl = toPlanes(ip, null);
+		scores = null;
+		if (tpl == null) return;
+		cn = tpl.length;
+		templMean = new double[cn];
+		templSdv = new double[cn];
+		int n = tw * th;
+		for (int k = 0; k < cn; k++) {
+			float[] p = tpl[k];
+			double sum = 0, sum2 = 0;
+			for (int i = 0; i < n; i++) sum += p[i];
+			double mean = sum / n;
+			for (int i = 0; i < n; i++) {
+				double d = p[i] - mean;
+				sum2 += d * d;
+			}
+			for (int i = 0; i < n; i++) p[i] = (float) (p[i] - mean);
+			templMean[k] = mean;
+			templSdv[k] = Math.sqrt(sum2 / n);
+		}
+	}
+
+	@Override
+	public FloatProcessor match(ImageProcessor src, int method) {
+
+		if (tpl == null) return null;
+		int iw = src.getWidth(), ih = src.getHeight();
+		if (iw < tw || ih < th) return null;
+		planes = toPlanes(src, planes);
+		if (planes == null || planes.length != cn) return null;
+
+		int rw = iw - tw + 1, rh = ih - th + 1;
+		if (result == null || result.getWidth() != rw || result.getHeight() != rh) result = new FloatProcessor(rw, rh);
+		float[] res = (float[]) result.getPixels();
+		if (scores == null || scores.method != method) scores = new MatchScores(method, tw, th, templMean, templSdv);
+		if (scores.flat) {
+			Arrays.fill(res, 1f);	// flat template, as in OpenCV
+			return result;
+		}
+
+		// zero mean source channels keep the float accumulation accurate
+		int n = iw * ih;
+		double[] mean = new double[cn];
+		for (int k = 0; k < cn; k++) {
+			float[] p = planes[k];
+			double sum = 0;
+			for (int i = 0; i < n; i++) sum += p[i];
+			mean[k] = sum / n;
+			float m = (float) mean[k];
+			for (int i = 0; i < n; i++) p[i] -= m;
+		}
+
+		// integral rows y and y+th are needed for result row y, a ring of th+1 rows is enough
+		int sw = (iw + 1) * cn, ring = th + 1;
+		boolean squares = scores.needSquares;
+		double[][] sum = new double[ring][sw], sqsum = squares ? new double[ring][sw] : null;
+		for (int r = 1; r <= th; r++) integralRow(r, iw, mean, sum, sqsum);
+
+		double[] corr = new double[rw];
+		float[] acc = new float[rw], row = new float[rw];
+		double[] empty = new double[0];
+		for (int y = 0; y < rh; y++) {
+			if (y > 0) integralRow(y + th, iw, mean, sum, sqsum);
+
+			Arrays.fill(corr, 0.0);
+			for (int k = 0; k < cn; k++) {
+				float[] p = planes[k], t = tpl[k];
+				Arrays.fill(acc, 0f);
+				for (int j = 0; j < th; j++) {
+					int rowOff = (y + j) * iw, tOff = j * tw;
+					for (int i = 0; i < tw; i++) {
+						float tv = t[tOff + i];
+						int off = rowOff + i;
+						for (int x = 0; x < rw; x++) acc[x] += tv * p[off + x];
+					}
+				}
+				for (int x = 0; x < rw; x++) corr[x] += acc[x];
+			}
+
+			int r0 = y % ring, r1 = (y + th) % ring;
+			scores.row(corr, sum[r0], sum[r1], squares ? sqsum[r0] : empty, squares ? sqsum[r1] : empty, row, rw);
+			System.arraycopy(row, 0, res, y * rw, rw);
+		}
+		return result;
+	}
+
+	// Integral row r (sums of the source rows above r) from row r-1, channels interleaved as in OpenCV
+	private void integralRow(int r, int iw, double[] mean, double[][] sum, double[][] sqsum) {
+
+		int ring = sum.length;
+		double[] prev = sum[(r - 1) % ring], cur = sum[r % ring];
+		double[] prevSq = sqsum != null ? sqsum[(r - 1) % ring] : null, curSq = sqsum != null ? sqsum[r % ring] : null;
+		for (int k = 0; k < cn; k++) {
+			float[] p = planes[k];
+			int off = (r - 1) * iw;
+			double s = 0, s2 = 0;
+			cur[k] = 0;
+			if (curSq != null) curSq[k] = 0;
+			for (int x = 0; x < iw; x++) {
+				double v = p[off + x] + mean[k];
+				s += v;
+				cur[(x + 1) * cn + k] = prev[(x + 1) * cn + k] + s;
+				if (curSq != null) {
+					s2 += v * v;
+					curSq[(x + 1) * cn + k] = prevSq[(x + 1) * cn + k] + s2;
+				}
+			}
+		}
+	}
+
+	@Override
+	public double ideal(int method) {
+		if (tpl == null) return 0.0;
+		FloatProcessor res = match(tplIp, method);
+		return res == null ? 0.0 : res.getf(0);
+	}
+
+	@Override
+	public long heldBytes() {
+		long bytes = 0;
+		if (planes != null) bytes += 4L * planes.length * planes[0].length;
+		if (result != null) bytes += 4L * result.getPixelCount();
+		return bytes;
+	}
+
+	@Override
+	public void close() {
+		planes = null;
+		result = null;
+	}
+
+	/** Float channels of the processor, reusing the given arrays when they are large enough */
+	private static float[][] toPlanes(ImageProcessor ip, float[][] planes) {
+
+		int n = ip.getWidth() * ip.getHeight();
+		Object pixels = ip.getPixels();
+		int channels = ip.getBitDepth() == 24 ? 3 : 1;
+		if (planes == null || planes.length != channels || planes[0].length < n) planes = new float[channels][n];
+
+		switch (ip.getBitDepth()) {
+			case 8: {
+				byte[] p = (byte[]) pixels;
+				float[] d = planes[0];
+				for (int i = 0; i < n; i++) d[i] = p[i] & 0xff;
+				break;
+			}
+			case 16: {
+				short[] p = (short[]) pixels;
+				float[] d = planes[0];
+				for (int i = 0; i < n; i++) d[i] = (float) ((p[i] & 0xffff) / 65535.0);
+				break;
+			}
+			case 32:
+				System.arraycopy((float[]) pixels, 0, planes[0], 0, n);
+				break;
+			case 24: {
+				// B, G, R order as in OpenCV
+				int[] p = (int[]) pixels;
+				float[] b = planes[0], g = planes[1], r = planes[2];
+				for (int i = 0; i < n; i++) {
+					int c = p[i];
+					b[i] = c & 0xff;
+					g[i] = (c >> 8) & 0xff;
+					r[i] = (c >> 16) & 0xff;
+				}
+				break;
+			}
+			default:
+				IJ.error("Unsupported image type");
+				return null;
+		}
+		return planes;
+	}
+}
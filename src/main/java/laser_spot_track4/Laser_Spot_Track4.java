@@ -12,40 +12,36 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifSubIFDDirectory;
 
 import java.awt.Rectangle;
 import java.awt.AWTEvent;
 
-import ij.plugin.FolderOpener;
 import ij.plugin.filter.*;
 import ij.plugin.frame.Recorder;
-import ij.measure.ResultsTable;
-import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
-import org.bytedeco.javacpp.*;
-import org.bytedeco.javacpp.indexer.*;
-import org.bytedeco.javacv.Java2DFrameUtils;
-import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.Point;
-import org.bytedeco.opencv.opencv_core.Size;
-
-import static org.bytedeco.opencv.global.opencv_core.*;
-import static org.bytedeco.opencv.global.opencv_imgproc.*;
-
 
 
 
@@ -75,6 +71,16 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     ImagePlus imp, ref_Image, spot_ref, spot_tpl, holder_ref, mark1_ref, mark2_ref, mark3_ref, mark4_ref;
 
     GaussianBlur gaussianBlur;
+    TargetTemplate spot_template, mark1_template, mark2_template, mark3_template, mark4_template;
+    SpotLocator spotLocator;
+    ExecutorService matchExecutor;
+    FrameIngest currentFrame;
+    FramePrefetcher framePrefetcher;
+    ShotTimeIndex shotTimes;
+    FrameStore frameStore;
+    VideoFrameSource videoSource;
+    NativeFrame nativeFrame;
+    ArrayList<Future<double[]>> pendingMatches = new ArrayList<Future<double[]>>();
     ImageStack stack;
     Rectangle spot_rect, holder_rect, mark1_rect, mark2_rect, mark3_rect, mark4_rect;
     Roi spot_roi,holder_roi, mark1_roi, mark2_roi, mark3_roi, mark4_roi;
@@ -87,8 +93,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     static final boolean autoSkipDefault = false;
     static final boolean matchIntensityDefault = true;
     static final boolean subPixelDefault = true;
+    static final boolean pyramidSearchDefault = false;
+    static final boolean motionPredictionDefault = false;
+    static final boolean nativePipelineDefault = false;
+    static final boolean spotCentroidDefault = false;
+    static final boolean regionDecodeDefault = false;
+    static final boolean exifPrescanDefault = false;
+    static final boolean keepFramesDefault = false;
+    static final boolean offHeapResultsDefault = false;
+    static final String matcherTypeDefault = TemplateMatcher.OPENCV;
     
-    int method = matchMethodDefault, refSlice, sArea = searchAreaDefault, templSize = templSizeDefault, anStep = 0;
+    int method = matchMethodDefault, refSlice, sArea = searchAreaDefault, templSize = templSizeDefault;
     double seconds=0, timeStep=1.0, markDist = markDistDefault;
     Instant first_shot_time; 
     int width, height, refBitDepth;
@@ -120,14 +135,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     
         
     
-    ArrayList<Double> displacement_list, x_pix_list, y_pix_list, 
-    				  time_list, spot_matchRes, attEnd_matchRes, 
-    				  mark1_matchRes, mark2_matchRes, mark3_matchRes, mark4_matchRes ; 
-    double displacement_min=0.0, displacement_max=0.0;
+    double spot_matchRes, mark1_matchRes, mark2_matchRes, mark3_matchRes, mark4_matchRes; 
     double spot_mideal, att_mideal, mark1_mideal, mark2_mideal, mark3_mideal, mark4_mideal;
     
     ImagePlus plotImage;
-    boolean folderMonitoring=true, updateTemplates=false, exifTime=true, autoSkip=autoSkipDefault, alwaysAutoSkip=autoSkipDefault;
+    LivePlot livePlot;
+    TrajectoryOverlay trajectory;
+    boolean folderMonitoring=true, updateTemplates=false, exifTime=true, autoSkip=autoSkipDefault, alwaysAutoSkip=autoSkipDefault,
+    		pyramidSearch=pyramidSearchDefault, motionPrediction=motionPredictionDefault, 
+    		nativePipeline=nativePipelineDefault, spotCentroid=spotCentroidDefault, regionDecode=regionDecodeDefault,
+    		exifPrescan=exifPrescanDefault, keepFrames=keepFramesDefault, offHeapResults=offHeapResultsDefault, timeStepAsked=false;
+    String matcherType = matcherTypeDefault;
     int autoSkipCounter=0, maxSArea=500;
     volatile WaitForUserDialog stopDlg=null, monitorDlg=null;
     volatile boolean trackFinished = false;
@@ -135,16 +153,21 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     
     
     //FloatProcessor result;
-    ResultsTable rt;
+    ResultColumns results;
+    ResultsView resultsView;
+    ResultsWriter resultsWriter;
     String projectName;
     int windowSizeX, windowSizeY, iniX, iniY;
     boolean subPixel = true;
     boolean matchIntensity = false;
     boolean showRT = true;
+    // parameters of a run without dialogs, null for an interactive run
+    HeadlessConfig headless = null;
     boolean firstPoint = true, videoInput=videoInputDefault, stopPlugin = false, useTimeStamps = true, javacvInstalled = false;
 	Roi refCropRoi = null;
 	//Roi mid_refCropRoi = null;
 	double[] matchThreshold=new double[]{0.1, 0.1, 0.05, 0.05, 0.2, 0.2};
+	double spotMinQuality = SpotLocator.MIN_QUALITY_DEFAULT;
 	ImageWindow imgWindow;
 	
 	int movieFrameNum = 0, previousFrameNum = 0;
@@ -156,6 +179,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 
 	private void setAltTimeMeasure()
 	{
+		if (headless != null) {
+			timeStep = headless.getDouble("timeStep", timeStep);
+			timeStepAsked = true;
+			return;
+		}
 		GenericDialog gd = new GenericDialog("Default time step");
         gd.addMessage("The images do not have EXIF data.\n"
         		+ "A constant time step will be used to define creation time of every next image.\n"
@@ -163,17 +191,63 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         gd.addNumericField("Time step in seconds ", timeStep, 0);
         gd.showDialog();
         timeStep = gd.getNextNumber();
+        timeStepAsked = true;
 	}
 	
 
 	
+	// Error stopping the plugin, in a message dialog or, in a run without dialogs, in the log
+	private void showError(String title, String message) {
+		if (headless != null) IJ.log(pluginName + ": " + message.replace("\n", " "));
+		else IJ.showMessage(title, message);
+	}
+	
+	// No point selected for the target, or no position of it given to a run without dialogs
+	private void pointMissing(String target) {
+		if (headless != null) IJ.log(pluginName + ": the position " + target + "=x,y is not given. Stopping.");
+		else IJ.showMessage("Error", "point ROI needed");
+	}
+	
+	// Point selected on the image by the user, or the position of the target given to a run without dialogs
+	private PointRoi selectPoint(String target, String message) {
+		
+		if (headless != null) {
+			float[] point = headless.getPoint(target);
+			return point != null ? new PointRoi(point[0], point[1]) : null;
+		}
+		IJ.setTool("point");
+        new WaitForUserDialog("Laser_Spot_Track4", message).show();
+        return (PointRoi)imp.getRoi();
+	}
+
 	public int setup(String arg, ImagePlus imp) {
     	
 		int returnMask = NO_IMAGE_REQUIRED + DOES_8G + DOES_16 +  DOES_32 + DOES_RGB + STACK_REQUIRED;
+		try {
+			headless = HeadlessConfig.read(Macro.getOptions());
+		} catch (IOException e) {
+			// only a run without dialogs has a parameter file
+			IJ.log(pluginName + ": the parameter file cannot be read: " + e.getMessage());
+			stopPlugin=true;
+			return returnMask;
+		}
+		if (headless != null) {
+			// no dialogs, the source is given by the parameters; JavaCV is not checked, the check may ask to install it
+			javacvInstalled = true;
+			matcherType = Prefs.get("laserspottrack.matcher", matcherTypeDefault);
+			String source = headless.get("source", "");
+			if (!openSource(source)) {
+				IJ.log(pluginName + ": the source cannot be opened as a video or an image sequence: " + source);
+				stopPlugin=true;
+			}
+			return returnMask;
+		}
     	//IJ.run("Install JavaCV libraries", "select=[Install missing] opencv openblas");
     	
     	//if (!CheckJavaCV("opencv openblas ffmpeg"))
-		javacvInstalled = checkJavaCV("1.5", true, "opencv");
+		// the Java matcher does not need the native libraries
+		matcherType = Prefs.get("laserspottrack.matcher", matcherTypeDefault);
+		javacvInstalled = matcherType.equals(TemplateMatcher.JAVA) || checkJavaCV("1.5", true, "opencv");
 		if (!javacvInstalled)
     	{
     		stopPlugin=true;
@@ -235,36 +309,21 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 
 
         	
-        	String videoReadCommand = "Using FFmpeg...";
-        	Hashtable table = Menus.getCommands();
-    		String className = (String)table.get(videoReadCommand);
-    		if (className==null) {
-    			videoReadCommand = "Compressed video";
-    			className = (String)table.get(videoReadCommand);
-    			if (className==null) {
-    				videoReadCommand = "Import Movie Using FFmpeg...";
-        			className = (String)table.get(videoReadCommand);
-        			if (className==null)
-        				IJ.showMessage("FFmpeg_Video plugin is necessary to import compressed video. \nIt can be intalled from the update site http://sites.imagej.net/VideoImportExport.");
-    			}
-    		}
+        	String videoReadCommand = videoReadCommand();
     		
     		OpenDialog	od = new OpenDialog("Open Video File", "");
 
 
     		if (od.getFileName() != null) {
     			//IJ.run("Using FFmpeg...", "open=["+od.getPath()+"] importquiet=true");
-    			IJ.run(videoReadCommand, "open=["+od.getPath()+"]");
-    			this.imp = WindowManager.getCurrentImage();
+    			this.imp = openVideo(videoReadCommand, od.getPath());
     		} else {
     			stopPlugin=true;
     			return returnMask;
     		}
     		
     		
-        	//this.imp = WindowManager.getCurrentImage();
-        	if (this.imp == null || this.imp.getProperty("stack_source_type")==null ||
-        			!this.imp.getProperty("stack_source_type").toString().equals("ffmpeg_frame_grabber")) {
+        	if (this.imp == null) {
     			stopPlugin=true;
     			return returnMask;
     		}
@@ -331,20 +390,13 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
             			stopPlugin=true;
             			return returnMask;
             		}
-        			File[] fileList = (new File(od.getDirectory())).listFiles();
-        			ArrayList<String> stackFiles = new ArrayList<String>(0);
+        			ArrayList<String> stackFiles = sequenceFiles(od.getDirectory(), extension);
 	            	int firstFile=0;
 
-	            	for (i = 0; i < fileList.length; i++){
-	            		if (fileList[i].isFile() && fileList[i].getName().contains(extension)){
-	            			stackFiles.add(fileList[i].getName());
-	            		}
-	            	}
 	            	if (stackFiles.size()<2){
 	            		stopPlugin=true;
 	        			return returnMask;
 	            	} else {
-	            		stackFiles.sort(null);//(String::compareToIgnoreCase);
 	            		firstFile=stackFiles.indexOf(firstFileName) + 1;
 	            	}
 	            	if (firstFile==0) {
@@ -371,12 +423,173 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         
         return returnMask;
     }
+	
+	private String videoReadCommand() {
+		
+		String videoReadCommand = "Using FFmpeg...";
+    	Hashtable table = Menus.getCommands();
+		String className = (String)table.get(videoReadCommand);
+		if (className==null) {
+			videoReadCommand = "Compressed video";
+			className = (String)table.get(videoReadCommand);
+			if (className==null) {
+				videoReadCommand = "Import Movie Using FFmpeg...";
+    			className = (String)table.get(videoReadCommand);
+    			if (className==null)
+    				showError("Message", "FFmpeg_Video plugin is necessary to import compressed video. \nIt can be intalled from the update site http://sites.imagej.net/VideoImportExport.");
+			}
+		}
+		return videoReadCommand;
+	}
+	
+	// Opens the video as a stack of the FFmpeg frame grabber, null if it is not opened as such
+	private ImagePlus openVideo(String videoReadCommand, String path) {
+		
+		IJ.run(videoReadCommand, "open=["+path+"]");
+		ImagePlus video = WindowManager.getCurrentImage();
+		if (video == null || video.getProperty("stack_source_type")==null ||
+    			!video.getProperty("stack_source_type").toString().equals("ffmpeg_frame_grabber")) return null;
+		return video;
+	}
+	
+	// Sorted names of the files of the folder with the extension
+	private static ArrayList<String> sequenceFiles(String directory, String extension) {
+		
+		ArrayList<String> stackFiles = new ArrayList<String>(0);
+		File[] fileList = (new File(directory)).listFiles();
+		if (fileList == null) return stackFiles;
+    	for (int i = 0; i < fileList.length; i++){
+    		if (fileList[i].isFile() && fileList[i].getName().contains(extension)){
+    			stackFiles.add(fileList[i].getName());
+    		}
+    	}
+    	stackFiles.sort(null);//(String::compareToIgnoreCase);
+    	return stackFiles;
+	}
+	
+	// Opens the source of a run without dialogs: the video, or a virtual stack of the sequence from its first image
+	private boolean openSource(String source) {
+		
+		File sourceFile = new File(source);
+		String firstFileName = sourceFile.getName(), extension = "";
+		int i = firstFileName.lastIndexOf('.');
+		if (i > 0 && i < firstFileName.length() - 1) extension = firstFileName.substring(i+1);
+		videoInput = videoTypes.contains(extension.toUpperCase());
+		if (!sourceFile.isFile() || extension.isEmpty()) return false;
+		if (videoInput) {
+			this.imp = openVideo(videoReadCommand(), source);
+			return this.imp != null;
+		}
+		
+		String directory = sourceFile.getAbsoluteFile().getParent() + File.separator;
+		ArrayList<String> stackFiles = sequenceFiles(directory, extension);
+		int firstFile = stackFiles.indexOf(firstFileName);
+		ImagePlus firstImage = IJ.openImage(sourceFile.getPath());
+		if (firstFile < 0 || stackFiles.size() - firstFile < 2 || firstImage == null) return false;
+		// the stack is not shown, as the one opened by Image Sequence it reads the images on demand
+		VirtualStack vstack = new VirtualStack(firstImage.getWidth(), firstImage.getHeight(), null, directory);
+		for (String name : stackFiles.subList(firstFile, stackFiles.size())) vstack.addSlice(name);
+		this.imp = new ImagePlus(firstFileName, vstack);
+		FileInfo fi = new FileInfo();
+		fi.fileName = firstFileName;
+		fi.directory = directory;
+		this.imp.setFileInfo(fi);
+		return true;
+	}
 
     
 	public void run(ImageProcessor ip) {
+		
+		try {
+			track();
+		} finally {
+			releaseMatchResources();
+			if (framePrefetcher != null) {
+				framePrefetcher.close();
+				framePrefetcher = null;
+			}
+			if (frameStore != null) {
+				frameStore.close();
+				frameStore = null;
+			}
+			if (videoSource != null) {
+				videoSource.close();
+				videoSource = null;
+			}
+			if (livePlot != null) {
+				livePlot.close();
+				livePlot = null;
+			}
+			if (resultsView != null) {
+				resultsView.close();
+				resultsView = null;
+			}
+			if (resultsWriter != null) {
+				resultsWriter.close();
+				resultsWriter = null;
+			}
+		}
+	}
+	
+	private void createMatchResources() {
+		
+		// one worker per target at most, bounded by the ImageJ thread setting
+		int nThreads = Math.min(5, Prefs.getThreads());
+		if (nThreads > 1) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				int count = 0;
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LaserSpotTrack-match-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			matchExecutor = executor;
+		}
+		// the targets start at the reference slice without displacement
+		for (TargetTemplate tt : new TargetTemplate[] {spot_template, mark1_template, mark2_template, mark3_template, mark4_template}) 
+			if (tt != null) tt.motion.reset(0.0, 0.0, refSlice);
+		// the slice is uploaded once and the search windows are prepared natively, if OpenCV could be loaded
+		if (nativePipeline && spot_template != null && spot_template.matcher instanceof OpenCvMatcher) 
+			nativeFrame = new NativeFrame(matchIntensity);
+	}
+	
+	private void releaseMatchResources() {
+		
+		if (matchExecutor != null) {
+			matchExecutor.shutdown();
+			try {
+				matchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			matchExecutor = null;
+		}
+		TargetTemplate[] templates = new TargetTemplate[] {spot_template, mark1_template, mark2_template, mark3_template, mark4_template};
+		long heldBytes = 0;
+		if (nativeFrame != null) {
+			heldBytes += nativeFrame.heldBytes();
+			nativeFrame.close();
+			nativeFrame = null;
+		}
+		for (TargetTemplate tt : templates) 
+			if (tt != null) {
+				heldBytes += tt.heldBytes();
+				tt.close();
+			}
+		spot_template = mark1_template = mark2_template = mark3_template = mark4_template = null;
+		// what the open workspaces still hold after the release shows a leak
+		if (IJ.debugMode) IJ.log(pluginName + ": " + matcherType + " matching buffers released, " + heldBytes + " bytes, "
+				+ MatchWorkspace.liveNativeBytes() + " native bytes still held");
+	}
+	
+	private void track() {
 
 		if (stopPlugin) {
-			if (javacvInstalled) IJ.showMessage("Error", "No source chosen. Stopping.");
+			if (javacvInstalled) showError("Error", "No source chosen. Stopping.");
 			return;
 		}
 		
@@ -384,12 +597,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		
         stack = imp.getStack();
         if (stack.size()<2)  {
-        	IJ.showMessage("Error", "There is only 1 slice in the stack.\nNothing to track.");
+        	showError("Error", "There is only 1 slice in the stack.\nNothing to track.");
             return;
         }
         
         if (!videoInput && !stack.isVirtual()) {
-        	IJ.showMessage("Error", "Only virtual stacks are supported");
+        	showError("Error", "Only virtual stacks are supported");
             return;
         }
         
@@ -406,54 +619,47 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         	}
         	
         	
-        	GenericDialog gd = new GenericDialog(pluginName);
-        	gd.addMessage("Please chose the method of getting the timestamp info\n"
-        			+ "\"Frame timestapm\" (default) is useful in case of variable frame rate;\n"
-        			+ "\"Calculate from frame rate\" works with constant frame rate video and allows to change the frame rate value.");
-        	gd.addRadioButtonGroup("Timestamp source", new String[]{"Frame timestapm", "Calculate from frame rate"}, 2, 1, "Frame timestapm");
-        	String fps_detected = String.format("%.3f", impliedFrameRate);
-        	if (fpsDetected){
-        		gd.addMessage("Frame rate of the video is determined as: "+ fps_detected + " fps.\n"
-        			+ "You may redefine the frame rate beneath.");
+        	if (headless != null) {
+        		// frame timestamps, unless a frame rate is given
+        		double frameRate = headless.getDouble("frameRate", 0);
+        		useTimeStamps = frameRate <= 0;
+        		if (!useTimeStamps) impliedFrameRate = frameRate;
         	} else {
-        		gd.addMessage("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!\n"+
-        	"Frame rate of the video cannot be determined. It is arbitrarily set to 1 fps\n"
-            			+ "You may redefine the frame rate beneath.\n"+
-        				  "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-        	}
-        	gd.addNumericField("Change frame rate to", impliedFrameRate, 3);
+        		GenericDialog gd = new GenericDialog(pluginName);
+        		gd.addMessage("Please chose the method of getting the timestamp info\n"
+        				+ "\"Frame timestapm\" (default) is useful in case of variable frame rate;\n"
+        				+ "\"Calculate from frame rate\" works with constant frame rate video and allows to change the frame rate value.");
+        		gd.addRadioButtonGroup("Timestamp source", new String[]{"Frame timestapm", "Calculate from frame rate"}, 2, 1, "Frame timestapm");
+        		String fps_detected = String.format("%.3f", impliedFrameRate);
+        		if (fpsDetected){
+        			gd.addMessage("Frame rate of the video is determined as: "+ fps_detected + " fps.\n"
+        				+ "You may redefine the frame rate beneath.");
+        		} else {
+        			gd.addMessage("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!\n"+
+        		"Frame rate of the video cannot be determined. It is arbitrarily set to 1 fps\n"
+        	    			+ "You may redefine the frame rate beneath.\n"+
+        					  "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+        		}
+        		gd.addNumericField("Change frame rate to", impliedFrameRate, 3);
 
-        	gd.showDialog();
-        	if (gd.wasCanceled()) {
-        		IJ.showMessage("Plugin is canceled.");
-        		return;
-        	}
+        		gd.showDialog();
+        		if (gd.wasCanceled()) {
+        			IJ.showMessage("Plugin is canceled.");
+        			return;
+        		}
 
-        	useTimeStamps=gd.getNextRadioButton().equalsIgnoreCase("Frame timestapm");
-        	impliedFrameRate = gd.getNextNumber();
-        	if (!useTimeStamps && (impliedFrameRate==Double.NaN || impliedFrameRate<=0)){
-        		IJ.showMessage("Wrong frame rate specified. Stopping plugin.");
-        		return;
+        		useTimeStamps=gd.getNextRadioButton().equalsIgnoreCase("Frame timestapm");
+        		impliedFrameRate = gd.getNextNumber();
+        		if (!useTimeStamps && (impliedFrameRate==Double.NaN || impliedFrameRate<=0)){
+        			IJ.showMessage("Wrong frame rate specified. Stopping plugin.");
+        			return;
+        		}
         	}
         }
         
         
         
         
-        displacement_list = new ArrayList<Double>();
-        x_pix_list = new ArrayList<Double>();
-        y_pix_list = new ArrayList<Double>();
-        
-        time_list = new ArrayList<Double>();
-        
-        spot_matchRes = new ArrayList<Double>();
-        mark1_matchRes = new ArrayList<Double>();
-        mark2_matchRes = new ArrayList<Double>();
-        mark3_matchRes = new ArrayList<Double>();
-        mark4_matchRes = new ArrayList<Double>();
-        
-        attEnd_matchRes = new ArrayList<Double>();
-        
         
         
         PlotWindow.noGridLines = false; // draw grid lines
@@ -478,20 +684,29 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         ov = new Overlay();
         imp.setOverlay(ov);
         
+        if (headless != null) {
+        	refSlice = Math.max(1, Math.min(stack.getSize(), headless.getInt("refSlice", 1)));
+        	imp.setSlice(refSlice);
+        	trackStep = Math.max(1, headless.getInt("trackStep", trackStep));
+        }
         refSlice = imp.getCurrentSlice();
-        ref_Image = new ImagePlus(stack.getSliceLabel(refSlice), stack.getProcessor(refSlice));
-        
+        if (videoInput) {
+        	// the tracked frames are decoded from the video file, the skipped ones are not converted;
+        	// for intensity matching only the luminance is decoded, for the reference frame too
+        	FileInfo videoInfo = imp.getOriginalFileInfo();
+        	if (videoInfo != null && videoInfo.fileName != null)
+        		videoSource = VideoFrameSource.open(Paths.get(videoInfo.directory, videoInfo.fileName).toString(), stack, matchIntensity);
+        }
+        ref_Image = new ImagePlus(stack.getSliceLabel(refSlice), videoInput ? videoFrame(refSlice) : stack.getProcessor(refSlice));
         
         
-		IJ.setTool("point");
-        new WaitForUserDialog("Laser_Spot_Track4", "Select a point in the center of the spot...\nthen press OK.").show();
         
-        proi_spot = (PointRoi)imp.getRoi();
+        proi_spot = selectPoint("spot", "Select a point in the center of the spot...\nthen press OK.");
         if (proi_spot != null) {
         refX_spot = proi_spot.getFloatPolygon().xpoints[0];
         refY_spot = proi_spot.getFloatPolygon().ypoints[0];
         } else {
-        	IJ.showMessage("Error", "point ROI needed");
+        	pointMissing("spot");
             return;
         }
         
@@ -499,7 +714,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         float dmin = Math.min(Math.min(d1, d2), Math.min(d3, d4));
         if (dmin<=templSize/2+sArea+1)
         {
-        	IJ.showMessage("Error", "Search point is to close to the edge.\nReduce template rectangle size on the first dialog.");
+        	showError("Error", "Search point is to close to the edge.\nReduce template rectangle size on the first dialog.");
             return;
         }
         
@@ -524,6 +739,10 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         ip_tmp=spot_ref.getProcessor();
         gaussianBlur = new GaussianBlur();
         gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
+        spot_tpl = spot_ref;
+        spot_template = new TargetTemplate(spot_tpl, TemplateMatcher.create(matcherType), (method==0?2:method), refBitDepth==24 && !matchIntensity);
+        spot_mideal = spot_template.ideal;
+        spotLocator = spotCentroid ? new SpotLocator(spot_tpl.getProcessor()) : null;
         refCropRoi =  spot_roi; //new Roi((int)(spot_ref.getWidth()*0.15), (int)(spot_ref.getHeight()*0.15), (int)(spot_ref.getWidth()*0.7), (int)(spot_ref.getHeight()*0.7));
 	
         
@@ -534,15 +753,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		imp.killRoi();
 		
 		
-		IJ.setTool("point");
-        new WaitForUserDialog("Laser_Spot_Track4", "Select a point in the center of the Mark1...\nthen press OK.").show();
-        
-        proi_mark1 = (PointRoi)imp.getRoi();
+        proi_mark1 = selectPoint("mark1", "Select a point in the center of the Mark1...\nthen press OK.");
         if (proi_mark1!=null) {
         refX_mark1 = proi_mark1.getFloatPolygon().xpoints[0];
         refY_mark1 = proi_mark1.getFloatPolygon().ypoints[0];
         } else {
-        	IJ.showMessage("Error", "point ROI needed");
+        	pointMissing("mark1");
             return;
         }
         
@@ -563,20 +779,18 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         
         ip_tmp = mark1_ref.getProcessor();
         gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        mark1_mideal = doMatch_test(mark1_ref.getProcessor(),(method==0?2:method));
+        mark1_template = new TargetTemplate(mark1_ref, TemplateMatcher.create(matcherType), (method==0?2:method), refBitDepth==24 && !matchIntensity);
+        mark1_mideal = mark1_template.ideal;
         
         imp.killRoi();
 		
 		
-		IJ.setTool("point");
-        new WaitForUserDialog("Laser_Spot_Track4", "Select a point in the center of the Mark2...\nthen press OK.").show();
-        
-        proi_mark2 = (PointRoi)imp.getRoi();
+        proi_mark2 = selectPoint("mark2", "Select a point in the center of the Mark2...\nthen press OK.");
         if (proi_mark2!=null) {
         refX_mark2 = proi_mark2.getFloatPolygon().xpoints[0];
         refY_mark2 = proi_mark2.getFloatPolygon().ypoints[0];
         } else {
-        	IJ.showMessage("Error", "point ROI needed");
+        	pointMissing("mark2");
             return;
         }
         
@@ -597,19 +811,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         
         ip_tmp = mark2_ref.getProcessor();
         gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        mark2_mideal = doMatch_test(mark2_ref.getProcessor(),(method==0?2:method));
+        mark2_template = new TargetTemplate(mark2_ref, TemplateMatcher.create(matcherType), (method==0?2:method), refBitDepth==24 && !matchIntensity);
+        mark2_mideal = mark2_template.ideal;
         imp.killRoi();
 		
 		
-		IJ.setTool("point");
-        new WaitForUserDialog("Laser_Spot_Track4", "Select a point in the center of the Mark3...\nthen press OK.").show();
-        
-        proi_mark3 = (PointRoi)imp.getRoi();
+        proi_mark3 = selectPoint("mark3", "Select a point in the center of the Mark3...\nthen press OK.");
         if (proi_mark3 != null) {
         refX_mark3 = proi_mark3.getFloatPolygon().xpoints[0];
         refY_mark3 = proi_mark3.getFloatPolygon().ypoints[0];
         } else {
-        	IJ.showMessage("Error", "point ROI needed");
+        	pointMissing("mark3");
             return;
         }
         
@@ -630,19 +842,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         
         ip_tmp = mark3_ref.getProcessor();
         gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        mark3_mideal = doMatch_test(mark3_ref.getProcessor(),(method==0?2:method));
+        mark3_template = new TargetTemplate(mark3_ref, TemplateMatcher.create(matcherType), (method==0?2:method), refBitDepth==24 && !matchIntensity);
+        mark3_mideal = mark3_template.ideal;
         imp.killRoi();
 		
 		
-		IJ.setTool("point");
-        new WaitForUserDialog("Laser_Spot_Track4", "Select a point in the center of the Mark4...\nthen press OK.").show();
-        
-        proi_mark4 = (PointRoi)imp.getRoi();
+        proi_mark4 = selectPoint("mark4", "Select a point in the center of the Mark4...\nthen press OK.");
         if (proi_mark4 != null) {
         refX_mark4 = proi_mark4.getFloatPolygon().xpoints[0];
         refY_mark4 = proi_mark4.getFloatPolygon().ypoints[0];
         } else {
-        	IJ.showMessage("Error", "point ROI needed");
+        	pointMissing("mark4");
             return;
         }
         
@@ -663,27 +873,28 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         
         ip_tmp = mark4_ref.getProcessor();
         gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        mark4_mideal= doMatch_test(mark4_ref.getProcessor(),(method==0?2:method));
+        mark4_template = new TargetTemplate(mark4_ref, TemplateMatcher.create(matcherType), (method==0?2:method), refBitDepth==24 && !matchIntensity);
+        mark4_mideal = mark4_template.ideal;
 		
+        createMatchResources();
+        
         int defaultPrecision = Analyzer.getPrecision();
         Analyzer.setPrecision(6);    
+        // the rows are kept in primitive columns, read by the results window, the plot and the overlay;
+        // the names of video frames are made from the slice labels when read
+        final String videoTitle = imp.getTitle();
+        results = new ResultColumns(Analyzer.getPrecision(), offHeapResults, !videoInput ? null : new ResultColumns.Labels() {
+        	@Override
+        	public String label(int slice) {
+        		return videoTitle + ":" + stack.getSliceLabel(slice).replaceAll(" ", "");
+        	}
+        });
 		if (showRT) {
             
         	
         	
-        	rt = new ResultsTable();
-        	rt.showRowNumbers(false);
-        	
-            
-//            rt.setDecimalPlaces(2, 2);
-//			rt.setDecimalPlaces(3, 2);
-//			rt.setDecimalPlaces(4, 2);
-//			rt.setDecimalPlaces(5, 2);
-//			rt.setDecimalPlaces(6, 2);
-			
-			
-			rt.show("Results");
-            //rt.showRowNumbers(false);
+        	// the window shows the new rows a few times per second
+        	resultsView = new ResultsView(results, "Results");
 
         }
         
@@ -695,6 +906,29 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         directory = fi.directory;
         name = stack.getSliceLabel(refSlice);
         
+        // the rows are written to the disk while tracking, the file gets the project name when saved
+        resultsWriter = ResultsWriter.open(Paths.get(outputDirectory(directory), "Results - unsaved "
+        		+ LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".txt").toString(), results);
+        
+        shotTimes = new ShotTimeIndex(directory);
+        if (!videoInput && keepFrames) {
+        	// frames decoded by previous runs are read from the store, with their EXIF times
+        	ArrayList<String> names = new ArrayList<String>();
+        	for (int i = 1; i <= stack.getSize(); i++) names.add(stack.getSliceLabel(i));
+        	frameStore = FrameStore.open(directory, names, width, height, refBitDepth);
+        	if (frameStore != null) frameStore.addShotTimes(shotTimes);
+        }
+        if (!videoInput && exifPrescan) {
+        	// the times of all tracked images are read at once, a missing time is handled before tracking
+        	ArrayList<String> names = new ArrayList<String>();
+        	names.add(name);
+        	for (int i = refSlice + 1; i <= stack.getSize(); i += trackStep) names.add(stack.getSliceLabel(i));
+        	IJ.showStatus("Reading EXIF times...");
+        	shotTimes.prescan(names, Prefs.getThreads());
+        	IJ.showStatus("");
+        	if (shotTimes.missing() > 0) setAltTimeMeasure();
+        }
+        
         String firstShotPath =  Paths.get(directory, name).toString();
     	first_shot_time = getShotTime(firstShotPath, refSlice);
     	if (first_shot_time==null) exifTime=false;
@@ -704,48 +938,24 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		
 		
 		
-		if (showRT) {
-            rt.incrementCounter();
-            rt.addValue("Time", 0);
-            rt.addValue("Frame", "" + rt.getCounter());
-            //rt.addValue("File", stack.getSliceLabel(refSlice));
-            if (videoInput) rt.addValue("File", imp.getTitle() + ":" +stack.getSliceLabel(refSlice).replaceAll(" ", ""));
-            else rt.addValue("File", stack.getSliceLabel(refSlice));
-            rt.addValue("dX_pix", dX_pix);
-            rt.addValue("dY_pix", dY_pix);
-            rt.addValue("X_abs", x_abs);
-            rt.addValue("Y_abs", y_abs);
-            rt.addValue("dL", dL);
-            
-			
-//			rt.setDecimalPlaces(2, 2);
-//			rt.setDecimalPlaces(3, 2);
-//			rt.setDecimalPlaces(4, 2);
-//			rt.setDecimalPlaces(5, 2);
-//			rt.setDecimalPlaces(6, 2);
-			
-			rt.show("Results");
-            //rt.showRowNumbers(false);
-            //IJ.log("colnumber - " + (rt.getLastColumn() +  1));
-            
-            
-        }
+		// the reference images match their templates ideally
+		results.add(0, refSlice, videoInput ? null : stack.getSliceLabel(refSlice), dX_pix, dY_pix, x_abs, y_abs, dL,
+				spot_mideal, mark1_mideal, mark2_mideal, mark3_mideal, mark4_mideal);
 
 		imp.deleteRoi();
 		ref_Image.deleteRoi();
 		
-		displacement_list.add(dL);
-		x_pix_list.add(refX_spot + disX_spot - disX_mark1);
-		y_pix_list.add(refY_spot + disY_spot - disY_mark1);
+		if (headless == null) trajectory = new TrajectoryOverlay(imp, new ImageProcessor[] {spot_template.overlay, mark1_template.overlay,
+				mark2_template.overlay, mark3_template.overlay, mark4_template.overlay}, results, refX_spot, refY_spot);
        
-        time_list.add(0.0);
-        
         
         
 		
                                                     // new plot window
         plotImage = new ImagePlus("Displacement plot", (new Plot("Displacement plot","Time, s","Displacement, mm")).getProcessor());
-        plotImage.show();
+        if (headless == null) plotImage.show();
+        // the plot is redrawn on a timer, from the points decimated to the plot width; without dialogs only when saved
+        livePlot = new LivePlot(plotImage, results, "Time, s", "Displacement, mm", headless == null);
         
         
         
@@ -786,35 +996,46 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 				
 			}
 		});
-		StopThread.start();	
-        
+		if (headless == null) StopThread.start();	
+        
+		// the next images are read and decoded in the background while a slice is analysed,
+		// the decoded images are also displayed from the cache
+		if (!videoInput && stack.getClass() == VirtualStack.class) {
+			framePrefetcher = new FramePrefetcher(directory, width, height, refBitDepth, 
+					Runtime.getRuntime().maxMemory() / 4, Math.max(1, Math.min(4, Prefs.getThreads() / 2)), frameStore);
+			stack = new PrefetchedVirtualStack((VirtualStack)stack, framePrefetcher);
+			imp.setStack(stack);
+		}
 		
 		trackFinished = false;
         for (int i = refSlice + 1; i < stack.getSize() + 1; i+=trackStep) {    
         	
-        	if (!StopThread.isAlive()) {
+        	if (headless == null && !StopThread.isAlive()) {
         		//new WaitForUserDialog("Laser Spot Track4", "The track is finished.").show();
         		saveResults(directory);
         		Analyzer.setPrecision(defaultPrecision);
         		return;
         	}
         	
-        	Opener opener=null;  
-			String imageFilePath="";
-			
-			ImagePlus imp_new=null;
+        	// the image is read and decoded once, its pixels and metadata are used for the analysis
+        	FrameIngest frame=null;
+        	Rectangle[] regions = regionDecode && sArea != 0 ? searchRegions() : null;
         	
-        	if (!videoInput){
-				opener = new Opener();  
-				imageFilePath = Paths.get(directory, stack.getSliceLabel(i)).toString();
-				imp_new = opener.openImage(imageFilePath);
+        	if (!videoInput && framePrefetcher != null){
+        		framePrefetcher.setRegions(regions);
+        		// the current image first, then the following ones with the current step
+        		String[] names = new String[framePrefetcher.depth() + 1];
+        		for (int k = 0; k < names.length && i + k * trackStep <= stack.getSize(); k++) 
+        			names[k] = stack.getSliceLabel(i + k * trackStep);
+        		framePrefetcher.prefetch(names);
+        		frame = framePrefetcher.get(names[0]);
+        	} else if (!videoInput){
+				String imageFilePath = Paths.get(directory, stack.getSliceLabel(i)).toString();
+				if (frameStore != null) frame = frameStore.read(stack.getSliceLabel(i), regions);
+				else frame = FrameIngest.read(imageFilePath, width, height, refBitDepth, regions);
 			}
         	
-			if (videoInput || ((new File(imageFilePath)).isFile() 
-					&& imp_new!=null 
-					&& imp_new.getWidth()==width 
-					&& imp_new.getHeight()==height 
-					&& imp_new.getBitDepth()==refBitDepth)){
+			if (videoInput || frame!=null){
 
 				
 					double  tmp_disX_spot=disX_spot,
@@ -827,8 +1048,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 							tmp_disY_mark3=disY_mark3,
 							tmp_disX_mark4=disX_mark4,
 							tmp_disY_mark4=disY_mark4;
+					MotionPredictor[] tmp_motion = motionStates();
 							
-				    int matchresult = analyseSlice(i, stack.getProcessor(i));
+				    currentFrame = frame;
+				    int matchresult = analyseSlice(i, videoInput ? videoFrame(i) : frame.processor);
+				    currentFrame = null;
 					if (matchresult==1) {
 							disX_spot=tmp_disX_spot;
 							disY_spot=tmp_disY_spot;
@@ -840,6 +1064,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 							disY_mark3=tmp_disY_mark3;
 							disX_mark4=tmp_disX_mark4;
 							disY_mark4=tmp_disY_mark4;
+							restoreMotion(tmp_motion);
 							
 						if (videoInput) i += (int)(impliedFrameRate * 0.2);
 						continue;
@@ -861,36 +1086,8 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		            
 		            
 		            
-		            if (showRT) {
-		            	rt.incrementCounter();
-		            	
-		                rt.addValue("Time", seconds);
-		                rt.addValue("Frame", "" + rt.getCounter());
-		                if (videoInput) rt.addValue("File", imp.getTitle() + ":" +stack.getSliceLabel(i).replaceAll(" ", ""));
-		                else rt.addValue("File", stack.getSliceLabel(refSlice));
-		                rt.addValue("dX_pix", dX_pix);
-		                rt.addValue("dY_pix", dY_pix);
-		                rt.addValue("X_abs", x_abs);
-		                rt.addValue("Y_abs", y_abs);
-		                rt.addValue("dL", dL);
-
-		                rt.show("Results");
-		            }
-					displacement_list.add(dL);
-					time_list.add(seconds);
-		            
-		            if (dL>displacement_max) displacement_max=dL;
-		            if (dL<displacement_min) displacement_min=dL;
-		            
-		            double y_height=displacement_max-displacement_min;
-		            if (y_height==0.0) y_height=1.0;
-		            double y_min=displacement_min-0.1*y_height,
-		            	   y_max=displacement_max+0.1*y_height;
-		            Plot plot1 = new Plot("Displacement Plot","Time, s","Displacement, mm");
-		            plot1.setLimits(0, seconds, y_min, y_max);
-		    		plot1.addPoints(time_list, displacement_list, Plot.LINE);
-		    		ImageProcessor plotIp = plot1.getProcessor();
-		    		plotImage.setProcessor(null, plotIp);
+		            results.add(seconds, i, videoInput ? null : stack.getSliceLabel(refSlice), dX_pix, dY_pix, x_abs, y_abs, dL,
+		            		spot_matchRes, mark1_matchRes, mark2_matchRes, mark3_matchRes, mark4_matchRes);
 		    		
 		    		
 		    		
@@ -920,21 +1117,46 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         }
        
         
-        GenericDialog gd = new GenericDialog("Monitor for additional images");
-        gd.addMessage("Do you want to check/monitor the folder for additional images?");
-        gd.showDialog();
-        if (gd.wasCanceled()) {
+        // without dialogs, the folder is watched for the given seconds
+        final long monitorMillis = headless != null ? (long)(1000 * headless.getDouble("monitor", 0)) : 0;
+        boolean monitor;
+        if (headless != null) monitor = monitorMillis > 0;
+        else {
+            GenericDialog gd = new GenericDialog("Monitor for additional images");
+            gd.addMessage("Do you want to check/monitor the folder for additional images?");
+            gd.showDialog();
+            monitor = !gd.wasCanceled();
+        }
+        if (!monitor) {
             saveResults(directory);
             Analyzer.setPrecision(defaultPrecision);
             return;
         }
         
+        // new images are found from the events of the folder, in order and once completely written
+        FolderWatcher folderWatcher;
+        try {
+        	folderWatcher = new FolderWatcher(directory, ((VirtualStack)imp.getStack()).getSliceLabel(imp.getCurrentSlice()));
+        } catch (IOException e) {
+        	showError(pluginName, "The folder cannot be monitored: " + e.getMessage());
+        	saveResults(directory);
+            Analyzer.setPrecision(defaultPrecision);
+            return;
+        }
+        
         trackFinished = false;
         Thread monitorThread = new Thread(new Runnable()
 		{
         	@Override
 			public void run() 
 			{
+        		if (headless != null) {
+        			try {
+        				Thread.sleep(monitorMillis);
+        			} catch (InterruptedException e) {
+        			}
+        			return;
+        		}
         		WaitForUserDialog dlg = new WaitForUserDialog("Waiting for new images...", "The folder will be monitored for new images until the dialog is closed");
 				
 				
@@ -955,62 +1177,26 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 				}
 		}
 			
+        try {
         while (monitorThread.isAlive()) {
         	
-            
-        	
-            	File[] fileList = (new File(directory)).listFiles();
-            	if (fileList != null) {
-            		
-	
-	            	// Exclude directories
-	            	String[] tmplist = new String[fileList.length];
-	            	
-	            	
-	            	int c = 0;
-	            	for (int i = 0; i < fileList.length; i++)
-	            		if (fileList[i].isFile())
-	            			tmplist[c++] = fileList[i].getName();
-	            	if (c>0) {
-		            	String[] list = new String[c];
-		            	for (int i = 0; i < c; i++) 
-		            		list[i] = tmplist[i];
-		            	
-		
-		            	// Now exclude non-image files as per the ImageJ FolderOpener
-		            	FolderOpener fo = new FolderOpener();
-		            	list = fo.trimFileList(list);
-		            	if (list != null && list.length>0){
-			            	
-			            	VirtualStack vstack = (VirtualStack)imp.getStack();
-			           
-			            	if (list.length > vstack.getSize()) {
-			            		String[] imageList = fo.sortFileList(list);
-			            		String LastSliceName = vstack.getSliceLabel(imp.getCurrentSlice());//vstack.getSliceLabel(vstack.getSize());
-			            		int foundPosition=0;
-			            		boolean filefound=false;
-			            		for (foundPosition = imageList.length-1; foundPosition>= 0; foundPosition--)
-			            		{
-			            			if (LastSliceName.equalsIgnoreCase(imageList[foundPosition])){
-			            				filefound=true;
-			            				break;
-			            			}
-			            		}
-			            		if (filefound)	
-			            				for (int j = foundPosition+1; j<imageList.length;j++)
+        	List<String> newImages;
+        	try {
+        		newImages = folderWatcher.poll(300);
+        	} catch (InterruptedException e) {
+        		break;
+        	}
+        	VirtualStack vstack = (VirtualStack)imp.getStack();
+        	for (String imageName : newImages)
 			            				{
 			            					
 			            					if (!monitorThread.isAlive()) break;
 			            					
-			            					Opener opener = new Opener();  
-			            					String imageFilePath = Paths.get(directory, imageList[j]).toString();
-			            					ImagePlus imp_new = opener.openImage(imageFilePath);
-			            					if (imp_new!=null 
-			            							&& imp_new.getWidth()==width 
-			            							&& imp_new.getHeight()==height 
-			            							&& imp_new.getBitDepth()==refBitDepth){
+			            					String imageFilePath = Paths.get(directory, imageName).toString();
+			            					FrameIngest frame = FrameIngest.read(imageFilePath, width, height, refBitDepth);
+			            					if (frame!=null){
 			            						
-			            		        		vstack.addSlice(imageList[j]);
+			            		        		vstack.addSlice(imageName);
 				            					
 				            					imp.setStack(vstack);
 				            					
@@ -1027,8 +1213,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 				            							tmp_disY_mark3=disY_mark3,
 				            							tmp_disX_mark4=disX_mark4,
 				            							tmp_disY_mark4=disY_mark4;
+				            					MotionPredictor[] tmp_motion = motionStates();
 				            				    			            					
-				            					int matchresult = analyseSlice(vstack.getSize(),imp_new.getProcessor());
+				            					currentFrame = frame;
+				            					int matchresult = analyseSlice(vstack.getSize(),frame.processor);
+				            					currentFrame = null;
 				            						
 				            						if (matchresult==1) {
 				            							disX_spot=tmp_disX_spot;
@@ -1041,6 +1230,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 				            							disY_mark3=tmp_disY_mark3;
 				            							disX_mark4=tmp_disX_mark4;
 				            							disY_mark4=tmp_disY_mark4;
+				            							restoreMotion(tmp_motion);
 				            							//disX_mid=tmp_disX_mid;
 				            							//disY_mid=tmp_disY_mid;
 				            						continue;
@@ -1061,51 +1251,8 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 				            						
 					            					//double ddx=disX_spot-disX_holder, ddy=disY_spot-disY_holder;
 					            		            
-					            		            if (showRT) {
-					            		            	rt.incrementCounter();
-					            		            	rt.addValue("Time", seconds);
-					            		            	rt.addValue("Frame", "" + rt.getCounter());
-					            		            	rt.addValue("File", stack.getSliceLabel(vstack.getSize()));
-					            		            	rt.addValue("dX_pix", dX_pix);
-					            		                rt.addValue("dY_pix", dY_pix);
-					            		                rt.addValue("X_abs", x_abs);
-					            		                rt.addValue("Y_abs", y_abs);
-					            		                rt.addValue("dL", dL);
-					            		               
-					            		                
-//						            						rt.setDecimalPlaces(2, 2);
-//						            						rt.setDecimalPlaces(3, 2);
-//						            						rt.setDecimalPlaces(4, 2);
-//						            						rt.setDecimalPlaces(5, 2);
-//						            						rt.setDecimalPlaces(6, 2);
-					            						
-					            		                
-					            		                rt.show("Results");
-					            		                //rt.showRowNumbers(false);
-					            		                
-					            		               
-					            		                
-					            		            }
-					            		            
-					            					displacement_list.add(dL);
-					            					
-					            		            
-					            		            time_list.add(seconds);
-					            		            
-					            		            if (dL>displacement_max) displacement_max=dL;
-					            		            if (dL<displacement_min) displacement_min=dL;
-					            		            
-					            		            
-					            		            
-					            		            double y_height=displacement_max-displacement_min;
-					            		            if (y_height==0.0) y_height=1.0;
-					            		            double y_min=displacement_min-0.1*y_height,
-					            		            	   y_max=displacement_max+0.1*y_height;
-					            		            Plot plot1 = new Plot("Displacement Plot","Time, s","Displacement");
-					            		            plot1.setLimits(0, seconds, y_min, y_max);
-					            		    		plot1.addPoints(time_list, displacement_list, Plot.LINE);
-					            		    		ImageProcessor plotIp = plot1.getProcessor();
-					            		    		plotImage.setProcessor(null, plotIp);
+					            		            results.add(seconds, vstack.getSize(), stack.getSliceLabel(vstack.getSize()), dX_pix, dY_pix, x_abs, y_abs, dL,
+					            		            		spot_matchRes, mark1_matchRes, mark2_matchRes, mark3_matchRes, mark4_matchRes);
 					            		    		
 					            		    		
 					            		    		
@@ -1113,22 +1260,9 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 					            		     		
 			            					}
 			            				}
-			            			
-			            		}
-			            		
-			            	}
-		            	}
-	            	}
-            	
-            	
-            	synchronized (this){
-	            	try {	
-					this.wait(300);
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-            	}
+        }
+        } finally {
+        	folderWatcher.close();
         }
         //new WaitForUserDialog("Laser Spot Tracking", "The track is finished.").show();
         saveResults(directory);
@@ -1196,6 +1330,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		return true;
 	}
 	
+	private ImageProcessor videoFrame(int slice)
+	{
+		// frames the video source cannot decode are read from the stack
+		ImageProcessor ip = videoSource != null ? videoSource.get(slice) : null;
+		if (ip != null) return ip;
+		ip = stack.getProcessor(slice);
+		// with the luminance of the decoder, not the RGB mean of convertToGray32, like the other frames
+		if (videoSource != null && videoSource.gray() && ip instanceof ColorProcessor) return VideoFrameSource.luma((ColorProcessor) ip);
+		return ip;
+	}
+
 	private Instant getShotTime(String imageFilePath, int videoSlice)
 	{
 		 // the creation time of the image is taken from the EXIF metadata
@@ -1206,19 +1351,14 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 			else return Instant.ofEpochSecond(0L, Math.round(1000000000.0*(videoSlice - 1)/impliedFrameRate));
 		}
 	       
-		File jpegFile = new File(imageFilePath);
-		
-		Metadata metadata;
+		// the time of the slice being analysed is parsed from the image read with its pixels
+		Instant shotTime;
+		if (currentFrame != null && currentFrame.path.equals(imageFilePath)) shotTime = shotTimes.get(currentFrame);
+		else shotTime = shotTimes.get(new File(imageFilePath).getName());
 		
-		try {
-			metadata = ImageMetadataReader.readMetadata(jpegFile);
-			ExifSubIFDDirectory md_directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-		    return md_directory.getDateOriginal().toInstant();//new DateTime(md_directory.getDateOriginal());
-			
-		} catch (Exception e) {
-			setAltTimeMeasure();
-			return null;
-		}
+		// the time step is asked once, before tracking if the times were read in advance
+		if (shotTime == null && !timeStepAsked) setAltTimeMeasure();
+		return shotTime;
 				
 	}
 	
@@ -1278,7 +1418,29 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     
 	}
 	
+	// Test of the spot position, by the centroid quality when the spot is located by its centroid
+	private boolean testSpotResult(double[] coord_res, int searchWidth) {
+		
+		if (spotLocator == null) 
+			return testMatchResult(coord_res[2], spot_mideal, method, coord_res[0], coord_res[1], searchWidth, templSize);
+		double distTrsh=Math.min(0.05*templSize, 0.05*searchWidth), x=coord_res[0], y=coord_res[1];
+		if (searchWidth!=0 &&  ((x<distTrsh) || (y<distTrsh) || (x>searchWidth-distTrsh) || (y>searchWidth-distTrsh))) return false;
+		return coord_res[2] >= spotMinQuality;
+	}
+	
+	private void adjustSpotThreshold(double result) {
+		
+		if (spotLocator == null) adjustThreshold(result, spot_mideal, method);
+		else spotMinQuality = 0.9*result;
+	}
+	
 	private int failureQuestionDlg(String placeName) {
+		if (headless != null) {
+			String onFailure = headless.get("onFailure", HeadlessConfig.SKIP);
+			IJ.log(pluginName + ": poor match of the " + placeName + ", " + onFailure);
+			if (onFailure.equalsIgnoreCase(HeadlessConfig.KEEP)) return 0;
+			return onFailure.equalsIgnoreCase(HeadlessConfig.STOP) ? 2 : 1;
+		}
 		Object[] options1 = { "Keep the result", "Skip the frame",
         "Stop tracking" };
 		//String placeName = (place==0?"stable mark":"laser spot");  
@@ -1299,35 +1461,257 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		return 2;
 	}
 
+    private ImagePlus prepareTarget(ImageProcessor slice_proc, int x, int y, int w, int h) {
+    	
+    	// Small image containing the search area, converted and blurred like the templates
+    	ImagePlus tar;
+    	synchronized (slice_proc) { // the roi of the shared slice processor is set during crop
+    		tar = new ImagePlus("",slice_proc);
+    		tar.setRoi(x, y, w, h);
+    		tar = tar.crop();
+    	}
+    	if (matchIntensity) {
+        	ImageConverter ic = new ImageConverter(tar);
+        	ic.convertToGray32();
+        }
+    	new GaussianBlur().blurGaussian(tar.getProcessor(), 2, 2, 0.02);
+    	return tar;
+    }
+    
+    // Reduction factor of the coarse search, the reduced template keeps at least 16 pixels
+    private int pyramidFactor() {
+    	int factor = 1;
+    	while (factor < 8 && templSize / (2 * factor) >= 16) factor *= 2;
+    	return factor;
+    }
+    
+    /*
+     * Coarse-to-fine search of a lost target inside the window: the window and the template are reduced
+     * by the pyramid factor and matched once, then the match is refined at full resolution in a small
+     * neighbourhood of the coarse position. The refinement window is returned in window, and the result
+     * is relative to its origin like for the other matches.
+     */
+    private double[] pyramidMatch(ImageProcessor slice_proc, Rectangle window, TargetTemplate tpl) {
+    	
+    	int factor = pyramidFactor();
+    	ImagePlus tar;
+    	ensureDecoded(window);
+    	synchronized (slice_proc) {
+    		tar = new ImagePlus("",slice_proc);
+    		tar.setRoi(window);
+    		tar = tar.crop();
+    	}
+    	if (matchIntensity) {
+        	ImageConverter ic = new ImageConverter(tar);
+        	ic.convertToGray32();
+        }
+    	// reducing first and blurring with the reduced sigma is much cheaper than prepareTarget on the whole window
+    	ImageProcessor coarse_proc = tar.getProcessor();
+    	coarse_proc.setInterpolationMethod(ImageProcessor.BILINEAR);
+    	coarse_proc = coarse_proc.resize(Math.max(1, window.width / factor), Math.max(1, window.height / factor), true);
+    	new GaussianBlur().blurGaussian(coarse_proc, 2.0 / factor, 2.0 / factor, 0.02);
+    	
+    	double[] coord_res = doMatch_coord_res(coarse_proc, tpl.coarse(factor), method, false, null);
+    	
+    	int margin = 2 * factor + 2;
+    	int x = Math.max(0, window.x + (int)coord_res[0] * factor - margin),
+    		y = Math.max(0, window.y + (int)coord_res[1] * factor - margin),
+    		w = Math.min(tpl.image.getWidth() + 2 * margin, width - x),
+    		h = Math.min(tpl.image.getHeight() + 2 * margin, height - y);
+    	window.setBounds(x, y, w, h);
+    	
+    	return matchWindow(slice_proc, x, y, w, h, tpl);
+    }
+    
+    /*
+     * Centre (displacement) and margin of the search window of a target. With motion prediction the window
+     * is centred on the predicted displacement and the margin covers the prediction uncertainty;
+     * otherwise, and until the velocity of the target is known, it is the previous displacement and sArea.
+     */
+    private int[] searchCentre(TargetTemplate tpl, int slice, double disX, double disY) {
+    	
+    	if (motionPrediction && sArea != 0) {
+    		tpl.motion.advance(slice);
+    		if (tpl.motion.ready()) 
+    			return new int[] {(int)tpl.motion.predictedX(), (int)tpl.motion.predictedY(), tpl.motion.margin(sArea)};
+    	}
+    	return new int[] {(int)disX, (int)disY, sArea};
+    }
+    
+    // States of the motion models, restored with the displacements when a frame is skipped
+    private MotionPredictor[] motionStates() {
+    	
+    	TargetTemplate[] templates = {spot_template, mark1_template, mark2_template, mark3_template, mark4_template};
+    	MotionPredictor[] states = new MotionPredictor[templates.length];
+    	for (int k = 0; k < templates.length; k++) states[k] = templates[k].motion.copy();
+    	return states;
+    }
+    
+    private void restoreMotion(MotionPredictor[] states) {
+    	
+    	TargetTemplate[] templates = {spot_template, mark1_template, mark2_template, mark3_template, mark4_template};
+    	for (int k = 0; k < templates.length; k++) templates[k].motion.restore(states[k]);
+    }
+    
+    private boolean predictedWindow(int[] win, double disX, double disY) {
+    	return win[0] != (int)disX || win[1] != (int)disY || win[2] != sArea;
+    }
+    
+    // Search window of sArea around the previous displacement, as without motion prediction
+    private Rectangle usualWindow(Rectangle rect, double disX, double disY) {
+    	
+    	int x = rect.x + (int)disX - sArea, y = rect.y + (int)disY - sArea,
+    		w = rect.width + 2 * sArea, h = rect.height + 2 * sArea;
+    	if (x < 0) x = 0;
+    	if (y < 0) y = 0;
+    	if (x + w > width) x = width - w;
+    	if (y + h > height) y = height - h;
+    	return new Rectangle(x, y, w, h);
+    }
+    
+    /*
+     * Search areas of the targets to decode in the next image: the windows around the current displacements,
+     * with twice the search area so that predicted and shifted windows usually fall inside.
+     */
+    private Rectangle[] searchRegions() {
+    	
+    	Rectangle[] rects = {spot_rect, mark1_rect, mark2_rect, mark3_rect, mark4_rect};
+    	double[] disX = {disX_spot, disX_mark1, disX_mark2, disX_mark3, disX_mark4},
+    			disY = {disY_spot, disY_mark1, disY_mark2, disY_mark3, disY_mark4};
+    	Rectangle[] regions = new Rectangle[rects.length];
+    	for (int k = 0; k < rects.length; k++) {
+    		regions[k] = new Rectangle(rects[k].x + (int)disX[k], rects[k].y + (int)disY[k], rects[k].width, rects[k].height);
+    		regions[k].grow(2 * sArea, 2 * sArea);
+    	}
+    	return regions;
+    }
+    
+    /*
+     * Windows outside the decoded areas of the current image need the whole image. It is decoded and uploaded
+     * on the tracking thread only, once the matches submitted for the slice have finished, so that no match
+     * reads the processor or the native frame while they are written.
+     */
+    private void ensureDecoded(Rectangle... windows) {
+    	
+    	FrameIngest frame = currentFrame;
+    	if (frame == null) return;
+    	boolean covered = true;
+    	for (Rectangle window : windows)
+    		covered &= frame.covers(window.intersection(new Rectangle(0, 0, width, height)));
+    	if (covered) return;
+    	awaitMatches();
+    	if (frame.decodeAll() && nativeFrame != null) nativeFrame.upload(frame.processor);
+    }
+    
+    // Waits for the submitted matches, their results stay in their futures
+    private void awaitMatches() {
+    	
+    	for (Future<double[]> job : pendingMatches) {
+    		try {
+    			job.get();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		} catch (ExecutionException e) {
+    		}
+    	}
+    }
+    
+    // Match in the search window on the tracking thread
+    private double[] matchWindow(ImageProcessor slice_proc, int x, int y, int w, int h, TargetTemplate tpl) {
+    	
+    	ensureDecoded(new Rectangle(x, y, w, h));
+    	return matchDecoded(slice_proc, x, y, w, h, tpl);
+    }
+    
+    // Match in a decoded search window, prepared by prepareTarget or in native code on the uploaded slice
+    private double[] matchDecoded(ImageProcessor slice_proc, int x, int y, int w, int h, TargetTemplate tpl) {
+    	
+    	if (spotLocator != null && tpl == spot_template) 
+    		return spotLocator.locate(prepareTarget(slice_proc, x, y, w, h).getProcessor());
+    	if (nativeFrame != null && tpl.matcher instanceof OpenCvMatcher) {
+    		FloatProcessor res = ((OpenCvMatcher)tpl.matcher).match(nativeFrame, new Rectangle(x, y, w, h), method);
+    		return res == null ? new double[3] : findMatch(res, method, subPixel, null);
+    	}
+    	ImagePlus tar = prepareTarget(slice_proc, x, y, w, h);
+    	return doMatch_coord_res(tar.getProcessor(), tpl.matcher, method, subPixel, null);
+    }
+    
+    private Future<double[]> submitMatch(final ImageProcessor slice_proc, final int x, final int y, final int w, final int h, 
+    		final TargetTemplate tpl) {
+    	
+    	ensureDecoded(new Rectangle(x, y, w, h));
+    	Callable<double[]> job = new Callable<double[]>() {
+    		@Override
+    		public double[] call() {
+    			return matchDecoded(slice_proc, x, y, w, h, tpl);
+    		}
+    	};
+    	Future<double[]> future;
+    	if (matchExecutor == null) {
+    		FutureTask<double[]> task = new FutureTask<double[]>(job);
+    		task.run();
+    		future = task;
+    	} else future = matchExecutor.submit(job);
+    	pendingMatches.add(future);
+    	return future;
+    }
+    
+    private double[] joinMatch(Future<double[]> job) {
+    	try {
+    		return job.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException(e);
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+    		throw new RuntimeException(e.getCause());
+    	}
+    }
+    
     private int analyseSlice(int slice, ImageProcessor slice_proc) {
+    	
+    	try {
+    		if (nativeFrame != null && !nativeFrame.upload(slice_proc)) {
+    			nativeFrame.close();
+    			nativeFrame = null;
+    		}
+    		return analyseTargets(slice, slice_proc);
+    	} finally {
+    		// a workspace may be reused only after its previous match has finished
+    		awaitMatches();
+    		pendingMatches.clear();
+    	}
+    }
+
+    private int analyseTargets(int slice, ImageProcessor slice_proc) {
 
  
         double[] coord_res = new double[3]; 
         Overlay overlay;
         
-        ImagePlus spot_tar = new ImagePlus("",slice_proc);
-        ImagePlus mark1_tar = new ImagePlus("",slice_proc);
-        ImagePlus mark2_tar = new ImagePlus("",slice_proc);
-        ImagePlus mark3_tar = new ImagePlus("",slice_proc);
-        ImagePlus mark4_tar = new ImagePlus("",slice_proc);
-        
-        ImagePlus tmpIp;
         
         int xStart_spot=0 ,yStart_spot=0, sWX_spot=width, sWY_spot=height, 
             xStart_mark1=0, yStart_mark1=0, sWX_mark1=width, sWY_mark1=height,
         	xStart_mark2=0, yStart_mark2=0, sWX_mark2=width, sWY_mark2=height,
         	xStart_mark3=0, yStart_mark3=0, sWX_mark3=width, sWY_mark3=height,
         	xStart_mark4=0, yStart_mark4=0, sWX_mark4=width, sWY_mark4=height;
+        
+        // centres and margins of the search windows, predicted by the motion models if enabled
+        int[] win_spot = searchCentre(spot_template, slice, disX_spot, disY_spot),
+        	win_mark1 = searchCentre(mark1_template, slice, disX_mark1, disY_mark1),
+        	win_mark2 = searchCentre(mark2_template, slice, disX_mark2, disY_mark2),
+        	win_mark3 = searchCentre(mark3_template, slice, disX_mark3, disY_mark3),
+        	win_mark4 = searchCentre(mark4_template, slice, disX_mark4, disY_mark4);
         	 
         
        
 
         if (sArea != 0) {
         	// Specifying coordinates of the search rectangle around the free end
-            xStart_spot = spot_rect.x + (int)disX_spot - sArea;
-            yStart_spot = spot_rect.y + (int)disY_spot - sArea;
-            sWX_spot = spot_rect.width + 2 * sArea;
-            sWY_spot = spot_rect.height + 2 * sArea;
+            xStart_spot = spot_rect.x + win_spot[0] - win_spot[2];
+            yStart_spot = spot_rect.y + win_spot[1] - win_spot[2];
+            sWX_spot = spot_rect.width + 2 * win_spot[2];
+            sWY_spot = spot_rect.height + 2 * win_spot[2];
 
             if (xStart_spot < 0) {
                 xStart_spot = 0;
@@ -1342,9 +1726,6 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 yStart_spot = height - sWY_spot;
             }
             
-            // Small image containing free crystal's end
-            spot_tar.setRoi(xStart_spot, yStart_spot, sWX_spot, sWY_spot);
-            spot_tar=spot_tar.crop();
             
             
             
@@ -1352,11 +1733,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
             
             
             
-			xStart_mark1 = mark1_rect.x + (int)disX_mark1 - sArea;
-            yStart_mark1 = mark1_rect.y + (int)disY_mark1 - sArea;
+			xStart_mark1 = mark1_rect.x + win_mark1[0] - win_mark1[2];
+            yStart_mark1 = mark1_rect.y + win_mark1[1] - win_mark1[2];
             
-            sWX_mark1 = mark1_rect.width + 2 * sArea;
-            sWY_mark1 = mark1_rect.height + 2 * sArea;
+            sWX_mark1 = mark1_rect.width + 2 * win_mark1[2];
+            sWY_mark1 = mark1_rect.height + 2 * win_mark1[2];
 
             if (xStart_mark1 < 0) {
                 xStart_mark1 = 0;
@@ -1371,15 +1752,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 yStart_mark1 = height - sWY_mark1;
             }
             
-            // Small image containing needed mark1 part
-            mark1_tar.setRoi(xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1);
-            mark1_tar=mark1_tar.crop();
             
-            xStart_mark2 = mark2_rect.x + (int)disX_mark2 - sArea;
-            yStart_mark2 = mark2_rect.y + (int)disY_mark2 - sArea;
+            xStart_mark2 = mark2_rect.x + win_mark2[0] - win_mark2[2];
+            yStart_mark2 = mark2_rect.y + win_mark2[1] - win_mark2[2];
             
-            sWX_mark2 = mark2_rect.width + 2 * sArea;
-            sWY_mark2 = mark2_rect.height + 2 * sArea;
+            sWX_mark2 = mark2_rect.width + 2 * win_mark2[2];
+            sWY_mark2 = mark2_rect.height + 2 * win_mark2[2];
 
             if (xStart_mark2 < 0) {
                 xStart_mark2 = 0;
@@ -1394,15 +1772,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 yStart_mark2 = height - sWY_mark2;
             }
             
-            // Small image containing needed mark2 part
-            mark2_tar.setRoi(xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2);
-            mark2_tar=mark2_tar.crop();
             
-            xStart_mark3 = mark3_rect.x + (int)disX_mark3 - sArea;
-            yStart_mark3 = mark3_rect.y + (int)disY_mark3 - sArea;
+            xStart_mark3 = mark3_rect.x + win_mark3[0] - win_mark3[2];
+            yStart_mark3 = mark3_rect.y + win_mark3[1] - win_mark3[2];
             
-            sWX_mark3 = mark3_rect.width + 2 * sArea;
-            sWY_mark3 = mark3_rect.height + 2 * sArea;
+            sWX_mark3 = mark3_rect.width + 2 * win_mark3[2];
+            sWY_mark3 = mark3_rect.height + 2 * win_mark3[2];
 
             if (xStart_mark3 < 0) {
                 xStart_mark3 = 0;
@@ -1417,15 +1792,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 yStart_mark3 = height - sWY_mark3;
             }
             
-            // Small image containing needed mark3 part
-            mark3_tar.setRoi(xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3);
-            mark3_tar=mark3_tar.crop();
             
-            xStart_mark4 = mark4_rect.x + (int)disX_mark4 - sArea;
-            yStart_mark4 = mark4_rect.y + (int)disY_mark4 - sArea;
+            xStart_mark4 = mark4_rect.x + win_mark4[0] - win_mark4[2];
+            yStart_mark4 = mark4_rect.y + win_mark4[1] - win_mark4[2];
             
-            sWX_mark4 = mark4_rect.width + 2 * sArea;
-            sWY_mark4 = mark4_rect.height + 2 * sArea;
+            sWX_mark4 = mark4_rect.width + 2 * win_mark4[2];
+            sWY_mark4 = mark4_rect.height + 2 * win_mark4[2];
 
             if (xStart_mark4 < 0) {
                 xStart_mark4 = 0;
@@ -1440,9 +1812,6 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 yStart_mark4 = height - sWY_mark4;
             }
             
-            // Small image containing needed mark4 part
-            mark4_tar.setRoi(xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4);
-            mark4_tar=mark4_tar.crop();
             
             
 
@@ -1453,31 +1822,36 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
            
         }
         
-        if (matchIntensity) {
-        	ImageConverter ic = new ImageConverter(spot_tar);
-        	ic.convertToGray32();
-        	ImageConverter mark1_ic = new ImageConverter(mark1_tar);
-        	mark1_ic.convertToGray32();
-        	ImageConverter mark2_ic = new ImageConverter(mark2_tar);
-        	mark2_ic.convertToGray32();
-        	ImageConverter mark3_ic = new ImageConverter(mark3_tar);
-        	mark3_ic.convertToGray32();
-        	ImageConverter mark4_ic = new ImageConverter(mark4_tar);
-        	mark4_ic.convertToGray32();
-        	
+        // templates, their native Mats and ideal scores were prepared once at selection
+        // The five targets are independent until calcDisplacement: they are cropped, converted, 
+        // blurred and matched concurrently, the results are checked below in the usual order.
+        // A window outside the decoded regions has the whole image decoded before any match starts
+        ensureDecoded(new Rectangle(xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1),
+        		new Rectangle(xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2),
+        		new Rectangle(xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3),
+        		new Rectangle(xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4),
+        		new Rectangle(xStart_spot, yStart_spot, sWX_spot, sWY_spot));
+		Future<double[]> mark1_job = submitMatch(slice_proc, xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1, mark1_template),
+				mark2_job = submitMatch(slice_proc, xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2, mark2_template),
+				mark3_job = submitMatch(slice_proc, xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3, mark3_template),
+				mark4_job = submitMatch(slice_proc, xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4, mark4_template),
+				spot_job = submitMatch(slice_proc, xStart_spot, yStart_spot, sWX_spot, sWY_spot, spot_template);
+        
+        coord_res = joinMatch(mark1_job);
+        
+        if (predictedWindow(win_mark1, disX_mark1, disY_mark1) 
+        		&& !testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], win_mark1[2]*2, templSize)) {
+        	Rectangle window = usualWindow(mark1_rect, disX_mark1, disY_mark1);
+        	coord_res = matchWindow(slice_proc, window.x, window.y, window.width, window.height, mark1_template);
+        	xStart_mark1 = window.x;
+            yStart_mark1 = window.y;
+            sWX_mark1 = window.width;
+            sWY_mark1 = window.height;
+            win_mark1 = new int[] {(int)disX_mark1, (int)disY_mark1, sArea};
         }
-        gaussianBlur.blurGaussian(spot_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(mark1_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(mark2_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(mark3_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(mark4_tar.getProcessor(), 2, 2, 0.02);
-        
-        
-        coord_res = doMatch_coord_res(mark1_tar.getProcessor(), mark1_ref.getProcessor(), method, subPixel, null);
-        
         
         boolean ignoreFrame=false, stopTracking=false;
-        if (!testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], sArea*2, templSize)) { ///////// The holder is not found...
+        if (!testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], win_mark1[2]*2, templSize)) { ///////// The holder is not found...
         	/*
 			if (sArea!=0) {										  ///////// Let's try global search if it was local search before
 			        		
@@ -1491,7 +1865,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 			        			
 			        		}
 			        		gaussianBlur.blurGaussian(full_tar.getProcessor(), 2, 2, 0.02);
-			        		coord_res = doMatch_coord_res(full_tar.getProcessor(), mark1_ref.getProcessor(), method, subPixel, null);
+			        		coord_res = doMatch_coord_res(full_tar.getProcessor(), mark1_ref.getProcessor(), matcherType, method, subPixel, null);
 			        		if (!testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], 0, templSize)) { ////////////// Not found globally
 			        			overlay = new Overlay();
 			        			if (refBitDepth==24 && !matchIntensity) {
@@ -1666,6 +2040,15 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         	int sArea_new=sArea;
 			boolean newMark1PositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
 			
+			if (sArea!=0 && pyramidSearch && pyramidFactor()>1) { // one coarse search over the whole slice instead of the growing areas
+				Rectangle window = new Rectangle(0, 0, width, height);
+				coord_res = pyramidMatch(slice_proc, window, mark1_template);
+				xStart_mark1 = window.x;
+	            yStart_mark1 = window.y;
+	            sWX_mark1 = window.width;
+	            sWY_mark1 = window.height;
+	            newMark1PositionFound = testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], sWX_mark1 - mark1_rect.width, templSize);
+			} else
 			if (sArea!=0)
 			while(!newMark1PositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
 			
@@ -1694,29 +2077,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 	                bottomBound=true;
 	            }
 	            
-	            mark1_tar = new ImagePlus("",slice_proc);
-	            
-	            mark1_tar.setRoi(xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1);
-	            mark1_tar=mark1_tar.crop();
-	            
-	            if (matchIntensity) {
-	            	ImageConverter ic = new ImageConverter(mark1_tar);
-	            	ic.convertToGray32();
-	            
-	            }
-	            gaussianBlur.blurGaussian(mark1_tar.getProcessor(), 2, 2, 0.02); 
-	            
-	            coord_res = doMatch_coord_res(mark1_tar.getProcessor(), mark1_ref.getProcessor(), method, subPixel, null);
+	            coord_res = matchWindow(slice_proc, xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1, mark1_template);
 
     			if (!testMatchResult(coord_res[2], mark1_mideal, method, coord_res[0], coord_res[1], sArea_new*2, templSize)) {
     				
     				
-    				if (refBitDepth==24 && !matchIntensity) {
-         				tmpIp = mark1_ref.duplicate();
-         				ImageConverter ic = new ImageConverter(tmpIp);
-                    	ic.convertToGray32();
-         			} else tmpIp=mark1_ref;
-        			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark1, (int)coord_res[1]+ yStart_mark1,tmpIp.getProcessor());
+    				ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark1, (int)coord_res[1]+ yStart_mark1,mark1_template.overlay);
         	        imageRoi.setOpacity(0.3);
         	        overlay = new Overlay();
         	        overlay.addElement(imageRoi);
@@ -1739,12 +2105,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 			if (!newMark1PositionFound){
 				
 				overlay = new Overlay();
-				if (refBitDepth==24 && !matchIntensity) {
-     				tmpIp = mark1_ref.duplicate();
-     				ImageConverter ic = new ImageConverter(tmpIp);
-                	ic.convertToGray32();
-     			} else tmpIp=mark1_ref;
-    			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark1, (int)coord_res[1]+ yStart_mark1,tmpIp.getProcessor());
+				ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark1, (int)coord_res[1]+ yStart_mark1,mark1_template.overlay);
     	        imageRoi.setOpacity(0.3);
     	        overlay.addElement(imageRoi);
     			imp.setSlice(slice);
@@ -1754,9 +2115,19 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     			ignoreFrame = (failureAnswer==1);
     			stopTracking = (failureAnswer==2);
 			} else {
+				// the shift of mark1 from its previous displacement moves the windows around the previous
+				// displacements of the others; predicted windows are put back there first
 				double xShift = coord_res[0] + xStart_mark1 - mark1_rect.x - disX_mark1,
 						yShift = coord_res[1] + yStart_mark1 - mark1_rect.y - disY_mark1;
 
+				if (predictedWindow(win_spot, disX_spot, disY_spot)) {
+					Rectangle window = usualWindow(spot_rect, disX_spot, disY_spot);
+					xStart_spot = window.x;
+					yStart_spot = window.y;
+					sWX_spot = window.width;
+					sWY_spot = window.height;
+					win_spot = new int[] {(int)disX_spot, (int)disY_spot, sArea};
+				}
 				xStart_spot += xShift;
 		        yStart_spot += yShift;
 		        
@@ -1774,20 +2145,18 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		            yStart_spot = height - sWY_spot;
 		        }
 		        
-		        spot_tar = new ImagePlus("",slice_proc);
-		        // Small image with spot
-		        spot_tar.setRoi(xStart_spot, yStart_spot, sWX_spot, sWY_spot);
-		        spot_tar=spot_tar.crop();
-		        
+		        joinMatch(spot_job);
+		        spot_job = submitMatch(slice_proc, xStart_spot, yStart_spot, sWX_spot, sWY_spot, spot_template);
 		        
-				if (matchIntensity) {
-		        	ImageConverter ic = new ImageConverter(spot_tar);
-		        	ic.convertToGray32();
 		        
+		        if (predictedWindow(win_mark2, disX_mark2, disY_mark2)) {
+		        	Rectangle window = usualWindow(mark2_rect, disX_mark2, disY_mark2);
+		        	xStart_mark2 = window.x;
+		        	yStart_mark2 = window.y;
+		        	sWX_mark2 = window.width;
+		        	sWY_mark2 = window.height;
+		        	win_mark2 = new int[] {(int)disX_mark2, (int)disY_mark2, sArea};
 		        }
-		        gaussianBlur.blurGaussian(spot_tar.getProcessor(), 2, 2, 0.02);      
-		        
-		        
 		        xStart_mark2 += xShift;
 		        yStart_mark2 += yShift;
 		        
@@ -1805,20 +2174,18 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		            yStart_mark2 = height - sWY_mark2;
 		        }
 		        
-		        mark2_tar = new ImagePlus("",slice_proc);
-		        // Small image containing mark2 crystal's end
-		        mark2_tar.setRoi(xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2);
-		        mark2_tar=mark2_tar.crop();
-		        
+		        joinMatch(mark2_job);
+		        mark2_job = submitMatch(slice_proc, xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2, mark2_template);
 		        
-				if (matchIntensity) {
-		        	ImageConverter ic = new ImageConverter(mark2_tar);
-		        	ic.convertToGray32();
 		        
+		        if (predictedWindow(win_mark3, disX_mark3, disY_mark3)) {
+		        	Rectangle window = usualWindow(mark3_rect, disX_mark3, disY_mark3);
+		        	xStart_mark3 = window.x;
+		        	yStart_mark3 = window.y;
+		        	sWX_mark3 = window.width;
+		        	sWY_mark3 = window.height;
+		        	win_mark3 = new int[] {(int)disX_mark3, (int)disY_mark3, sArea};
 		        }
-		        gaussianBlur.blurGaussian(mark2_tar.getProcessor(), 2, 2, 0.02);   
-		        
-		        
 		        xStart_mark3 += xShift;
 		        yStart_mark3 += yShift;
 		        
@@ -1836,19 +2203,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		            yStart_mark3 = height - sWY_mark3;
 		        }
 		        
-		        mark3_tar = new ImagePlus("",slice_proc);
-		        // Small image containing mark3 crystal's end
-		        mark3_tar.setRoi(xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3);
-		        mark3_tar=mark3_tar.crop();
-		        
-		        
-				if (matchIntensity) {
-		        	ImageConverter ic = new ImageConverter(mark3_tar);
-		        	ic.convertToGray32();
+		        joinMatch(mark3_job);
+		        mark3_job = submitMatch(slice_proc, xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3, mark3_template);
 		        
+		        if (predictedWindow(win_mark4, disX_mark4, disY_mark4)) {
+		        	Rectangle window = usualWindow(mark4_rect, disX_mark4, disY_mark4);
+		        	xStart_mark4 = window.x;
+		        	yStart_mark4 = window.y;
+		        	sWX_mark4 = window.width;
+		        	sWY_mark4 = window.height;
+		        	win_mark4 = new int[] {(int)disX_mark4, (int)disY_mark4, sArea};
 		        }
-		        gaussianBlur.blurGaussian(mark3_tar.getProcessor(), 2, 2, 0.02);  
-		        
 		        xStart_mark4 += xShift;
 		        yStart_mark4 += yShift;
 		        
@@ -1866,18 +2231,8 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		            yStart_mark4 = height - sWY_mark4;
 		        }
 		        
-		        mark4_tar = new ImagePlus("",slice_proc);
-		        // Small image containing mark4 crystal's end
-		        mark4_tar.setRoi(xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4);
-		        mark4_tar=mark4_tar.crop();
-		        
-		        
-				if (matchIntensity) {
-		        	ImageConverter ic = new ImageConverter(mark4_tar);
-		        	ic.convertToGray32();
-		        
-		        }
-		        gaussianBlur.blurGaussian(mark4_tar.getProcessor(), 2, 2, 0.02);  
+		        joinMatch(mark4_job);
+		        mark4_job = submitMatch(slice_proc, xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4, mark4_template);
 				
 			}
         	
@@ -1886,10 +2241,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         if (ignoreFrame) return 1;
         if (stopTracking) return 2;
         
-        mark1_matchRes.add(coord_res[2]);
+        mark1_matchRes = coord_res[2];
         
         disX_mark1 = coord_res[0] + xStart_mark1 - mark1_rect.x;
         disY_mark1 = coord_res[1] + yStart_mark1 - mark1_rect.y;
+        if (motionPrediction) mark1_template.motion.update(disX_mark1, disY_mark1);
         
         //correct first estimation
         //remove the correction!!!
@@ -1905,18 +2261,23 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		
         
         
-        //mark2_mideal= doMatch_test(mark2_ref.getProcessor(),idealMethod);
-        coord_res = doMatch_coord_res(mark2_tar.getProcessor(), mark2_ref.getProcessor(), method, subPixel, null);
+        //mark2_mideal= doMatch_test(mark2_ref.getProcessor(),matcherType,idealMethod);
+        coord_res = joinMatch(mark2_job);
         
+        if (predictedWindow(win_mark2, disX_mark2, disY_mark2) 
+        		&& !testMatchResult(coord_res[2], mark2_mideal, method, coord_res[0], coord_res[1], win_mark2[2]*2, templSize)) {
+        	Rectangle window = usualWindow(mark2_rect, disX_mark2, disY_mark2);
+        	coord_res = matchWindow(slice_proc, window.x, window.y, window.width, window.height, mark2_template);
+        	xStart_mark2 = window.x;
+            yStart_mark2 = window.y;
+            sWX_mark2 = window.width;
+            sWY_mark2 = window.height;
+            win_mark2 = new int[] {(int)disX_mark2, (int)disY_mark2, sArea};
+        }
         
-        if (!testMatchResult(coord_res[2], mark2_mideal, method, coord_res[0], coord_res[1], sArea*2, templSize)) {
+        if (!testMatchResult(coord_res[2], mark2_mideal, method, coord_res[0], coord_res[1], win_mark2[2]*2, templSize)) {
 			overlay = new Overlay();
-			if (refBitDepth==24 && !matchIntensity) {
- 				tmpIp = mark2_ref.duplicate();
- 				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
- 			} else tmpIp=mark2_ref;
-			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark2, (int)coord_res[1]+ yStart_mark2,tmpIp.getProcessor());
+			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark2, (int)coord_res[1]+ yStart_mark2,mark2_template.overlay);
 	        imageRoi.setOpacity(0.3);
 	        overlay.addElement(imageRoi);
 			imp.setSlice(slice);
@@ -1931,10 +2292,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         if (stopTracking) return 2;
 
         //if (iter>0) mark2_matchRes.remove(mark2_matchRes.size()-1);
-		mark2_matchRes.add(coord_res[2]);
+		mark2_matchRes = coord_res[2];
 		
 		disX_mark2 = coord_res[0] + xStart_mark2 - mark2_rect.x;
         disY_mark2 = coord_res[1] + yStart_mark2 - mark2_rect.y;
+        if (motionPrediction) mark2_template.motion.update(disX_mark2, disY_mark2);
         
         //correct first estimation
         //remove the correction!!
@@ -1946,18 +2308,23 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 //        disX_mark2 -= disX_mark20;
 //        disY_mark2 -= disY_mark20;
         
-        //mark3_mideal= doMatch_test(mark3_ref.getProcessor(),idealMethod);
-        coord_res = doMatch_coord_res(mark3_tar.getProcessor(), mark3_ref.getProcessor(), method, subPixel, null);
-        
+        //mark3_mideal= doMatch_test(mark3_ref.getProcessor(),matcherType,idealMethod);
+        coord_res = joinMatch(mark3_job);
+        
+        if (predictedWindow(win_mark3, disX_mark3, disY_mark3) 
+        		&& !testMatchResult(coord_res[2], mark3_mideal, method, coord_res[0], coord_res[1], win_mark3[2]*2, templSize)) {
+        	Rectangle window = usualWindow(mark3_rect, disX_mark3, disY_mark3);
+        	coord_res = matchWindow(slice_proc, window.x, window.y, window.width, window.height, mark3_template);
+        	xStart_mark3 = window.x;
+            yStart_mark3 = window.y;
+            sWX_mark3 = window.width;
+            sWY_mark3 = window.height;
+            win_mark3 = new int[] {(int)disX_mark3, (int)disY_mark3, sArea};
+        }
         
-        if (!testMatchResult(coord_res[2], mark3_mideal, method, coord_res[0], coord_res[1], sArea*2, templSize)) {
+        if (!testMatchResult(coord_res[2], mark3_mideal, method, coord_res[0], coord_res[1], win_mark3[2]*2, templSize)) {
 			overlay = new Overlay();
-			if (refBitDepth==24 && !matchIntensity) {
- 				tmpIp = mark3_ref.duplicate();
- 				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
- 			} else tmpIp=mark3_ref;
-			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark3, (int)coord_res[1]+ yStart_mark3,tmpIp.getProcessor());
+			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark3, (int)coord_res[1]+ yStart_mark3,mark3_template.overlay);
 	        imageRoi.setOpacity(0.3);
 	        overlay.addElement(imageRoi);
 			imp.setSlice(slice);
@@ -1972,10 +2339,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         if (stopTracking) return 2;
 
         //if (iter>0) mark3_matchRes.remove(mark3_matchRes.size()-1);
-		mark3_matchRes.add(coord_res[2]);
+		mark3_matchRes = coord_res[2];
 		
 		disX_mark3 = coord_res[0] + xStart_mark3 - mark3_rect.x;
         disY_mark3 = coord_res[1] + yStart_mark3 - mark3_rect.y;
+        if (motionPrediction) mark3_template.motion.update(disX_mark3, disY_mark3);
         
         //correct first estimation
         //remove the correction!!!
@@ -1987,18 +2355,23 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 //        disX_mark3 -= disX_mark30;
 //        disY_mark3 -= disY_mark30;
         
-        //mark4_mideal= doMatch_test(mark4_ref.getProcessor(),idealMethod);
-        coord_res = doMatch_coord_res(mark4_tar.getProcessor(), mark4_ref.getProcessor(), method, subPixel, null);
-        
+        //mark4_mideal= doMatch_test(mark4_ref.getProcessor(),matcherType,idealMethod);
+        coord_res = joinMatch(mark4_job);
+        
+        if (predictedWindow(win_mark4, disX_mark4, disY_mark4) 
+        		&& !testMatchResult(coord_res[2], mark4_mideal, method, coord_res[0], coord_res[1], win_mark4[2]*2, templSize)) {
+        	Rectangle window = usualWindow(mark4_rect, disX_mark4, disY_mark4);
+        	coord_res = matchWindow(slice_proc, window.x, window.y, window.width, window.height, mark4_template);
+        	xStart_mark4 = window.x;
+            yStart_mark4 = window.y;
+            sWX_mark4 = window.width;
+            sWY_mark4 = window.height;
+            win_mark4 = new int[] {(int)disX_mark4, (int)disY_mark4, sArea};
+        }
         
-        if (!testMatchResult(coord_res[2], mark4_mideal, method, coord_res[0], coord_res[1], sArea*2, templSize)) {
+        if (!testMatchResult(coord_res[2], mark4_mideal, method, coord_res[0], coord_res[1], win_mark4[2]*2, templSize)) {
 			overlay = new Overlay();
-			if (refBitDepth==24 && !matchIntensity) {
- 				tmpIp = mark4_ref.duplicate();
- 				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
- 			} else tmpIp=mark4_ref;
-			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark4, (int)coord_res[1]+ yStart_mark4,tmpIp.getProcessor());
+			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mark4, (int)coord_res[1]+ yStart_mark4,mark4_template.overlay);
 	        imageRoi.setOpacity(0.3);
 	        overlay.addElement(imageRoi);
 			imp.setSlice(slice);
@@ -2013,10 +2386,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         if (stopTracking) return 2;
 
         //if (iter>0) mark4_matchRes.remove(mark4_matchRes.size()-1);
-		mark4_matchRes.add(coord_res[2]);
+		mark4_matchRes = coord_res[2];
 		
 		disX_mark4 = coord_res[0] + xStart_mark4 - mark4_rect.x;
         disY_mark4 = coord_res[1] + yStart_mark4 - mark4_rect.y;
+        if (motionPrediction) mark4_template.motion.update(disX_mark4, disY_mark4);
         
         //correct first estimation
         //remove the correction
@@ -2044,13 +2418,20 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         //}
         
         
-		spot_tpl = spot_ref.duplicate();
-		
+		coord_res = joinMatch(spot_job);
 		
-		spot_mideal=doMatch_test(spot_tpl.getProcessor(), (method==0?2:method));
-		coord_res = doMatch_coord_res(spot_tar.getProcessor(), spot_tpl.getProcessor(), method, subPixel, null);
+		if (predictedWindow(win_spot, disX_spot, disY_spot) 
+				&& !testSpotResult(coord_res, win_spot[2]*2)) {
+			Rectangle window = usualWindow(spot_rect, disX_spot, disY_spot);
+        	coord_res = matchWindow(slice_proc, window.x, window.y, window.width, window.height, spot_template);
+        	xStart_spot = window.x;
+            yStart_spot = window.y;
+            sWX_spot = window.width;
+            sWY_spot = window.height;
+            win_spot = new int[] {(int)disX_spot, (int)disY_spot, sArea};
+		}
 
-		if (!testMatchResult(coord_res[2], spot_mideal, method, coord_res[0], coord_res[1], sArea*2, templSize)) {
+		if (!testSpotResult(coord_res, win_spot[2]*2)) {
 			
 			
 			//IJ.showMessage("Spot is lost");
@@ -2058,6 +2439,22 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 			int sArea_new=sArea;
 			boolean newSpotPositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
 			
+			if (sArea!=0 && pyramidSearch && pyramidFactor()>1) { // one coarse search over the largest area instead of the growing areas
+				Rectangle window = new Rectangle(0, 0, width, height);
+				if (autoSkip && maxSArea!=0) {
+					while (sArea_new*2<=maxSArea) sArea_new*=2;
+					window = new Rectangle(spot_rect.x + (int)disX_spot - sArea_new, spot_rect.y + (int)disY_spot - sArea_new, 
+							spot_rect.width + 2 * sArea_new, spot_rect.height + 2 * sArea_new).intersection(window);
+				}
+				if (!(autoSkip && maxSArea!=0) || sArea_new>sArea) {
+					coord_res = pyramidMatch(slice_proc, window, spot_template);
+					xStart_spot = window.x;
+		            yStart_spot = window.y;
+		            sWX_spot = window.width;
+		            sWY_spot = window.height;
+		            newSpotPositionFound = testSpotResult(coord_res, sWX_spot - spot_rect.width);
+				}
+			} else
 			if (sArea!=0)
 			while(!newSpotPositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
 			
@@ -2087,29 +2484,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 	                bottomBound=true;
 	            }
 	            
-	            spot_tar = new ImagePlus("",slice_proc);
-	            
-	            spot_tar.setRoi(xStart_spot, yStart_spot, sWX_spot, sWY_spot);
-	            spot_tar=spot_tar.crop();
-	            
-	            if (matchIntensity) {
-	            	ImageConverter ic = new ImageConverter(spot_tar);
-	            	ic.convertToGray32();
-	            
-	            }
-	            gaussianBlur.blurGaussian(spot_tar.getProcessor(), 2, 2, 0.02); 
-	            
-	            coord_res = doMatch_coord_res(spot_tar.getProcessor(), spot_tpl.getProcessor(), method, subPixel, null);
+	            coord_res = matchWindow(slice_proc, xStart_spot, yStart_spot, sWX_spot, sWY_spot, spot_template);
 
-    			if (!testMatchResult(coord_res[2], spot_mideal, method, coord_res[0], coord_res[1], sArea_new*2, templSize)) {
+    			if (!testSpotResult(coord_res, sArea_new*2)) {
     				
     				
-    				if (refBitDepth==24 && !matchIntensity) {
-         				tmpIp = spot_tpl.duplicate();
-         				ImageConverter ic = new ImageConverter(tmpIp);
-                    	ic.convertToGray32();
-         			} else tmpIp=spot_tpl;
-        			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_spot, (int)coord_res[1]+ yStart_spot,tmpIp.getProcessor());
+    				ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_spot, (int)coord_res[1]+ yStart_spot,spot_template.overlay);
         	        imageRoi.setOpacity(0.3);
         	        overlay = new Overlay();
         	        overlay.addElement(imageRoi);
@@ -2132,19 +2512,14 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 			if (!newSpotPositionFound){
 				
 				overlay = new Overlay();
-				if (refBitDepth==24 && !matchIntensity) {
-     				tmpIp = spot_tpl.duplicate();
-     				ImageConverter ic = new ImageConverter(tmpIp);
-                	ic.convertToGray32();
-     			} else tmpIp=spot_tpl;
-    			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_spot, (int)coord_res[1]+ yStart_spot,tmpIp.getProcessor());
+				ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_spot, (int)coord_res[1]+ yStart_spot,spot_template.overlay);
     	        imageRoi.setOpacity(0.3);
     	        overlay.addElement(imageRoi);
     			imp.setSlice(slice);
     			imp.setOverlay(overlay);
     			if (!autoSkip){
     				int failureAnswer = failureQuestionDlg("laser spot"); 
-    				if (failureAnswer==0) adjustThreshold(coord_res[2], spot_mideal, method);
+    				if (failureAnswer==0) adjustSpotThreshold(coord_res[2]);
         			ignoreFrame = (failureAnswer==1);
         			stopTracking = (failureAnswer==2);
     			} else {
@@ -2154,7 +2529,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		}
 		
 		if (ignoreFrame) {
-			if (!autoSkip && autoSkipCounter++==2) {
+			if (!autoSkip && headless == null && autoSkipCounter++==2) {
 				autoSkipCounter=0;
 				GenericDialog gd = new GenericDialog("Automatic Frame Skip");
 		        gd.addMessage("It's time to think of automatic skip possibility...\n"//
@@ -2177,10 +2552,11 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     	        //if (iter>0) spot_matchRes.remove(spot_matchRes.size()-1);
         autoSkip=alwaysAutoSkip;
         autoSkipCounter=0;
-		spot_matchRes.add(coord_res[2]);
+		spot_matchRes = coord_res[2];
 		
 		disX_spot = coord_res[0] + xStart_spot - spot_rect.x;
         disY_spot = coord_res[1] + yStart_spot - spot_rect.y;
+        if (motionPrediction) spot_template.motion.update(disX_spot, disY_spot);
 		
         //correct first estimation
         // remove the correction!!!
@@ -2193,12 +2569,8 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 //        disY_spot -= disY_spot0;
             
             
-            if(!firstPoint) anStep++;
 			calcDisplacement();
 			
-			x_pix_list.add(refX_spot+disX_spot-disX_mark1);
-			y_pix_list.add(refY_spot+disY_spot-disY_mark1);
-			
 		if (exifTime)
         {
         	Instant shot_time;
@@ -2217,100 +2589,22 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 		
 		
   
-        if (refBitDepth==24 && !matchIntensity) {
-				tmpIp = spot_tpl.duplicate();
-				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
-			} else tmpIp=spot_tpl;
-        ImageRoi imageRoi_spot = new ImageRoi((int)disX_spot+spot_rect.x, (int)disY_spot+spot_rect.y,tmpIp.getProcessor());
-        imageRoi_spot.setOpacity(0.3);
-        overlay = new Overlay(imageRoi_spot);
-        proi_spot = new PointRoi(refX_spot+disX_spot,refY_spot+disY_spot);
-        proi_spot.setPointType(3);
-        overlay.addElement(proi_spot);
-        
-        if (refBitDepth==24 && !matchIntensity) {
-			tmpIp = mark1_ref.duplicate();
-			ImageConverter ic = new ImageConverter(tmpIp);
-        	ic.convertToGray32();
-		} else tmpIp=mark1_ref;
-        ImageRoi imageRoi_mark1 = new ImageRoi((int)disX_mark1+mark1_rect.x, (int)disY_mark1+mark1_rect.y,tmpIp.getProcessor());
-        imageRoi_mark1.setOpacity(0.3);
-        overlay.addElement(imageRoi_mark1);
-        proi_mark1 = new PointRoi(refX_mark1+disX_mark1,refY_mark1+disY_mark1);
-        proi_mark1.setPointType(3);
-        overlay.addElement(proi_mark1);
-        
-        
-        if (refBitDepth==24 && !matchIntensity) {
-			tmpIp = mark2_ref.duplicate();
-			ImageConverter ic = new ImageConverter(tmpIp);
-        	ic.convertToGray32();
-		} else tmpIp=mark2_ref;
-        ImageRoi imageRoi_mark2 = new ImageRoi((int)disX_mark2+mark2_rect.x, (int)disY_mark2+mark2_rect.y,tmpIp.getProcessor());
-        imageRoi_mark2.setOpacity(0.3);
-        overlay.addElement(imageRoi_mark2);
-        proi_mark2 = new PointRoi(refX_mark2+disX_mark2,refY_mark2+disY_mark2);
-        proi_mark2.setPointType(3);
-        overlay.addElement(proi_mark2);
-        
-        
-        
-        if (refBitDepth==24 && !matchIntensity) {
-			tmpIp = mark3_ref.duplicate();
-			ImageConverter ic = new ImageConverter(tmpIp);
-        	ic.convertToGray32();
-		} else tmpIp=mark3_ref;
-        ImageRoi imageRoi_mark3 = new ImageRoi((int)disX_mark3+mark3_rect.x, (int)disY_mark3+mark3_rect.y,tmpIp.getProcessor());
-        imageRoi_mark3.setOpacity(0.3);
-        overlay.addElement(imageRoi_mark3);
-        proi_mark3 = new PointRoi(refX_mark3+disX_mark3,refY_mark3+disY_mark3);
-        proi_mark3.setPointType(3);
-        overlay.addElement(proi_mark3);
-        
-        
-        if (refBitDepth==24 && !matchIntensity) {
-			tmpIp = mark4_ref.duplicate();
-			ImageConverter ic = new ImageConverter(tmpIp);
-        	ic.convertToGray32();
-		} else tmpIp=mark4_ref;
-        ImageRoi imageRoi_mark4 = new ImageRoi((int)disX_mark4+mark4_rect.x, (int)disY_mark4+mark4_rect.y,tmpIp.getProcessor());
-        imageRoi_mark4.setOpacity(0.3);
-        overlay.addElement(imageRoi_mark4);
-        proi_mark4 = new PointRoi(refX_mark4+disX_mark4,refY_mark4+disY_mark4);
-        proi_mark4.setPointType(3);
-        overlay.addElement(proi_mark4);
- 
-		overlay.addElement(new Roi(xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1));
-		overlay.addElement(new Roi(xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2));
-		overlay.addElement(new Roi(xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3));
-		overlay.addElement(new Roi(xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4));
-       
-        overlay.addElement(new Roi(xStart_spot, yStart_spot, sWX_spot, sWY_spot));
-        float[] xpf = new float[anStep + 1], ypf = new float[anStep + 1];
-        for (int displStep = 0;displStep < anStep + 1;displStep++)
-        {
-        	
-        	xpf[displStep] = (float) (x_pix_list.get(displStep) + disX_mark1);
-        	ypf[displStep] = (float) (y_pix_list.get(displStep) + disY_mark1);
-        	
-        	
-        }
-        PolygonRoi spot_trajectory = new PolygonRoi(xpf, ypf, Roi.FREELINE);
-        /*
-		FloatPolygon flPol = needle_line.getFloatPolygon();
-				int nPoints=flPol.npoints;
-				String msgstr="xPoins: ";
-				for (int pp=0;pp<nPoints;pp++)
-		{
-			msgstr+=" "+flPol.xpoints[pp];
-		}
-				IJ.showMessage(msgstr);
-				
-		*/
-        overlay.addElement(spot_trajectory);
+        if (trajectory == null) return 0;
+        // the template images are moved, the trajectory is kept decimated to the display resolution
+        trajectory.setTarget(TrajectoryOverlay.SPOT, (int)disX_spot+spot_rect.x, (int)disY_spot+spot_rect.y, refX_spot+disX_spot, refY_spot+disY_spot);
+        trajectory.setTarget(TrajectoryOverlay.MARK1, (int)disX_mark1+mark1_rect.x, (int)disY_mark1+mark1_rect.y, refX_mark1+disX_mark1, refY_mark1+disY_mark1);
+        trajectory.setTarget(TrajectoryOverlay.MARK2, (int)disX_mark2+mark2_rect.x, (int)disY_mark2+mark2_rect.y, refX_mark2+disX_mark2, refY_mark2+disY_mark2);
+        trajectory.setTarget(TrajectoryOverlay.MARK3, (int)disX_mark3+mark3_rect.x, (int)disY_mark3+mark3_rect.y, refX_mark3+disX_mark3, refY_mark3+disY_mark3);
+        trajectory.setTarget(TrajectoryOverlay.MARK4, (int)disX_mark4+mark4_rect.x, (int)disY_mark4+mark4_rect.y, refX_mark4+disX_mark4, refY_mark4+disY_mark4);
+        
+		trajectory.setSearchWindow(TrajectoryOverlay.MARK1, xStart_mark1, yStart_mark1, sWX_mark1, sWY_mark1);
+		trajectory.setSearchWindow(TrajectoryOverlay.MARK2, xStart_mark2, yStart_mark2, sWX_mark2, sWY_mark2);
+		trajectory.setSearchWindow(TrajectoryOverlay.MARK3, xStart_mark3, yStart_mark3, sWX_mark3, sWY_mark3);
+		trajectory.setSearchWindow(TrajectoryOverlay.MARK4, xStart_mark4, yStart_mark4, sWX_mark4, sWY_mark4);
+		trajectory.setSearchWindow(TrajectoryOverlay.SPOT, xStart_spot, yStart_spot, sWX_spot, sWY_spot);
+		
 		imp.setSlice(slice);
-        imp.setOverlay(overlay);
+		trajectory.show(dX_pix, dY_pix, disX_mark1, disY_mark1);
  
         return 0;
     }
@@ -2377,6 +2671,38 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     	markDist = (double) Prefs.get("laserspottrack.markDist", markDistDefault);
     	matchIntensity = (boolean) Prefs.get("laserspottrack.matchIntensity", matchIntensityDefault);
     	subPixel = (boolean) Prefs.get("laserspottrack.subPixel", subPixelDefault);
+    	pyramidSearch = (boolean) Prefs.get("laserspottrack.pyramidSearch", pyramidSearchDefault);
+    	motionPrediction = (boolean) Prefs.get("laserspottrack.motionPrediction", motionPredictionDefault);
+    	nativePipeline = (boolean) Prefs.get("laserspottrack.nativePipeline", nativePipelineDefault);
+    	spotCentroid = (boolean) Prefs.get("laserspottrack.spotCentroid", spotCentroidDefault);
+    	regionDecode = (boolean) Prefs.get("laserspottrack.regionDecode", regionDecodeDefault);
+    	exifPrescan = (boolean) Prefs.get("laserspottrack.exifPrescan", exifPrescanDefault);
+    	keepFrames = (boolean) Prefs.get("laserspottrack.keepFrames", keepFramesDefault);
+    	offHeapResults = (boolean) Prefs.get("laserspottrack.offHeapResults", offHeapResultsDefault);
+    	
+    	if (headless != null) {
+    		// the given parameters, the saved ones otherwise; they are not saved
+    		method = Math.max(0, Math.min(5, headless.getInt("method", method)));
+    		templSize = headless.getInt("templSize", templSize);
+    		sArea = headless.getInt("sArea", sArea);
+    		markDist = headless.getDouble("markDist", markDist);
+    		subPixel = headless.getBoolean("subPixel", subPixel);
+    		matchIntensity = headless.getBoolean("matchIntensity", matchIntensity);
+    		pyramidSearch = headless.getBoolean("pyramidSearch", pyramidSearch);
+    		motionPrediction = headless.getBoolean("motionPrediction", motionPrediction);
+    		spotCentroid = headless.getBoolean("spotCentroid", spotCentroid);
+    		regionDecode = headless.getBoolean("regionDecode", regionDecode);
+    		exifPrescan = headless.getBoolean("exifPrescan", exifPrescan);
+    		keepFrames = headless.getBoolean("keepFrames", keepFrames);
+    		offHeapResults = headless.getBoolean("offHeapResults", offHeapResults);
+    		matcherType = headless.get("matcher", matcherType);
+    		nativePipeline = headless.getBoolean("nativePipeline", nativePipeline);
+    		// poor matches are skipped unless the policy is to keep them or to stop
+    		alwaysAutoSkip = autoSkip = headless.get("onFailure", HeadlessConfig.SKIP).equalsIgnoreCase(HeadlessConfig.SKIP);
+    		maxSArea = headless.getInt("maxSArea", maxSArea);
+    		showRT = false;
+    		return true;
+    	}
     	
         String[] methods = {"Square difference", "Normalized square difference", "Cross correlation", "Normalized cross correlation", "Correlation coefficient", "Normalized correlation coefficient"};
         //String[] itpMethods = {"Bilinear", "Bicubic"};
@@ -2393,6 +2719,15 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         gd.addCheckbox("Subpixel registration", subPixel);
         gd.addCheckbox("Match RGB images using intensity", matchIntensity);
         gd.addCheckbox("Always skip frames with bad match", alwaysAutoSkip);
+        gd.addCheckbox("Coarse-to-fine search of lost targets", pyramidSearch);
+        gd.addCheckbox("Predict target motion to narrow the search areas", motionPrediction);
+        gd.addCheckbox("Locate the laser spot by its intensity centroid", spotCentroid);
+        gd.addCheckbox("Decode only the search areas of the images", regionDecode);
+        gd.addCheckbox("Read the EXIF times of all images before tracking", exifPrescan);
+        gd.addCheckbox("Keep the decoded images in a frame store for later runs", keepFrames);
+        gd.addCheckbox("Keep the results outside the Java heap", offHeapResults);
+        gd.addChoice("Matching backend", TemplateMatcher.TYPES, matcherType);
+        gd.addCheckbox("Crop, blur and match in native code (OpenCV backend)", nativePipeline);
         //gd.addChoice("Interpolation method for subpixel translation", itpMethods, itpMethods[itpMethod]);
        
         //gd.addCheckbox("update templates?", false);
@@ -2407,6 +2742,21 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         subPixel = gd.getNextBoolean();
         matchIntensity  = gd.getNextBoolean();
         alwaysAutoSkip = gd.getNextBoolean();
+        pyramidSearch = gd.getNextBoolean();
+        motionPrediction = gd.getNextBoolean();
+        spotCentroid = gd.getNextBoolean();
+        regionDecode = gd.getNextBoolean();
+        exifPrescan = gd.getNextBoolean();
+        keepFrames = gd.getNextBoolean();
+        offHeapResults = gd.getNextBoolean();
+        String previousMatcherType = matcherType;
+        matcherType = gd.getNextChoice();
+        nativePipeline = gd.getNextBoolean();
+        if (matcherType.equals(TemplateMatcher.OPENCV) && previousMatcherType.equals(TemplateMatcher.JAVA) 
+        		&& !checkJavaCV("1.5", true, "opencv")) {
+        	Prefs.set("laserspottrack.matcher", matcherType);
+        	return false;
+        }
         //itpMethod = gd.getNextChoiceIndex();
         //updateTemplates = gd.getNextBoolean();
         showRT = true;
@@ -2419,6 +2769,15 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
     	Prefs.set("laserspottrack.markDist", markDist);
     	Prefs.set("laserspottrack.matchIntensity", matchIntensity);
     	Prefs.set("laserspottrack.subPixel", subPixel);
+    	Prefs.set("laserspottrack.pyramidSearch", pyramidSearch);
+    	Prefs.set("laserspottrack.motionPrediction", motionPrediction);
+    	Prefs.set("laserspottrack.nativePipeline", nativePipeline);
+    	Prefs.set("laserspottrack.spotCentroid", spotCentroid);
+    	Prefs.set("laserspottrack.regionDecode", regionDecode);
+    	Prefs.set("laserspottrack.exifPrescan", exifPrescan);
+    	Prefs.set("laserspottrack.keepFrames", keepFrames);
+    	Prefs.set("laserspottrack.offHeapResults", offHeapResults);
+    	Prefs.set("laserspottrack.matcher", matcherType);
     	
         
         return true;
@@ -2440,30 +2799,74 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         return !Pattern.compile(INVALID_CHARACTERS).matcher(name).find();
     }
     
+    // the folder of the result files, the folder of the images unless given without dialogs
+    private String outputDirectory(String directory)
+    {
+        if (headless == null) return directory;
+        String output = headless.get("output", directory);
+        new File(output).mkdirs();
+        return output;
+    }
+    
     private void saveResults(String directory)
     {
         boolean goodName = false;
-        String resultsPath = "", plotPath = "";
+        String resultsPath = "", plotPath = "", binaryPath = "";
+        directory = outputDirectory(directory);
+        // without dialogs, a bad project name keeps the results in the file written while tracking
+        String givenName = headless != null ? headless.get("project", "") : null;
         while (!goodName) {
-            projectName = setProjectNameDlg();
+            projectName = givenName != null ? givenName : setProjectNameDlg();
             if (projectName.isEmpty()) 
             {
                 //new WaitForUserDialog(pluginName, "Do not forget to save results!").show();
+                if (resultsWriter != null) {
+                	resultsWriter.close();
+                	IJ.log("The results are kept in " + resultsWriter.path());
+                }
                 return;
             }
+            if (headless != null && !isValidProjectename(projectName)) {
+                IJ.log(pluginName + ": the project name contains forbidden symbols: " + INVALID_CHARACTERS);
+                givenName = "";
+                continue;
+            }
             if (!isValidProjectename(projectName)) {
                 new WaitForUserDialog(pluginName, "Specified name contains forbidden symbols: " + INVALID_CHARACTERS).show();
                 continue;
             }
             resultsPath = Paths.get(directory, "Results - " + projectName + ".txt").toString();
             plotPath = Paths.get(directory, "Displacement plot - " + projectName + ".tif").toString();
-            if (!new File(resultsPath).exists() && !new File(plotPath).exists()) goodName = true;
+            binaryPath = Paths.get(directory, "Results - " + projectName + ResultsFile.EXTENSION).toString();
+            if (!new File(resultsPath).exists() && !new File(plotPath).exists() && !new File(binaryPath).exists()) goodName = true;
+            else if (headless != null) {
+                IJ.log(pluginName + ": the results of the project " + projectName + " already exist in " + directory);
+                givenName = "";
+                continue;
+            }
             else new WaitForUserDialog(pluginName, "Specified name already exits. Change name or check files!").show();
-            Prefs.set("laserspottrack.lastProject", projectName);
+            if (givenName == null) Prefs.set("laserspottrack.lastProject", projectName);
         }
         
-        rt.save(resultsPath);
+        // the file written while tracking is complete, it is renamed
+        if (resultsWriter == null || !resultsWriter.moveTo(resultsPath)) {
+        	try {
+        		results.save(resultsPath);
+        		if (resultsWriter != null) resultsWriter.delete();
+        	} catch (IOException e) {
+        		showError(pluginName, "The results cannot be saved:\n" + e.getMessage());
+        	}
+        }
+        resultsWriter = null;
+        // the same results in binary columns, with the parameters of the session
+        try {
+        	ResultsFile.write(binaryPath, results, method, templSize, sArea, refSlice, markDist, new float[] {refX_spot, refY_spot, 
+        			refX_mark1, refY_mark1, refX_mark2, refY_mark2, refX_mark3, refY_mark3, refX_mark4, refY_mark4});
+        } catch (IOException e) {
+        	showError(pluginName, "The binary results cannot be saved:\n" + e.getMessage());
+        }
         Analyzer.setUnsavedMeasurements(false);
+        if (livePlot != null) livePlot.draw();
         FileSaver plotSaver = new FileSaver(plotImage);
         
         plotSaver.saveAsTiff(plotPath);
@@ -2488,62 +2891,17 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
 	    return iplImage;
 	}
 	*/
-	public static Mat toMatcv(BufferedImage bufImage) {
-
-		Mat mat =  Java2DFrameUtils.toMat(bufImage);
-//	    ToMat matConverter = new OpenCVFrameConverter.ToMat();
-//	    Java2DFrameConverter java2dConverter = new Java2DFrameConverter();
-//	    Mat mat =  matConverter.convert(java2dConverter.convert(bufImage));
-	    return mat;
-	}
-	
-
-    
-    public static double[]  doMatch_coord_res(ImageProcessor src, ImageProcessor tpl, int method, boolean subPix, double[] searchLine) {
-
-        BufferedImage bi = null, bi2 = null;
-        Mat sourceMat, templateMat, temp, temp2;
-        int srcW = src.getWidth();
-        int srcH = src.getHeight();
-        int tplW = tpl.getWidth();
-        int tplH = tpl.getHeight();
-        sourceMat = null;
-        templateMat = null;
-        double[] coord_res = new double[3];
-        
-        switch (src.getBitDepth()) {
+    // one-off match with a matcher of the given type, the type of the run so that all passes use the same backend
+    public static double[]  doMatch_coord_res(ImageProcessor src, ImageProcessor tpl, String matcherType, int method, boolean subPix, double[] searchLine) {
+    	
+    	try (TemplateMatcher matcher = TemplateMatcher.create(matcherType)) {
+    		matcher.setTemplate(tpl);
+    		return doMatch_coord_res(src, matcher, method, subPix, searchLine);
+    	}
+    }
     
-            case 16:
-                //since cvMatchTemplate don't accept 16bit image, we have to convert it to 32bit
-                bi = ((ShortProcessor) src).get16BitBufferedImage();
-                temp = toMatcv(bi);
-                temp.convertTo(sourceMat, CV_32FC1, 1 / 65535.0, 0);
-                bi2 = ((ShortProcessor) tpl).get16BitBufferedImage();
-                temp2 = toMatcv(bi2);
-                temp2.convertTo(templateMat, CV_32FC1, 1 / 65535.0, 0);
-                break;
-            case 32:   
-            case 24:	
-            case 8:
-            	
-                bi = src.getBufferedImage();
-                sourceMat = toMatcv(bi);
-
-                bi2 = tpl.getBufferedImage();
-                templateMat = toMatcv(bi2);
-
-                break;
-            default:
-                IJ.error("Unsupported image type");
-                break;
-        }
-
-       
-        
-        Mat resMat = new Mat(new Size(srcW - tplW + 1, srcH - tplH + 1), CV_32FC1);
-        
+    public static double[]  doMatch_coord_res(ImageProcessor src, TemplateMatcher matcher, int method, boolean subPix, double[] searchLine) {
 
-        
         //CV_TM_SQDIFF        = 0,
         //CV_TM_SQDIFF_NORMED = 1,
         //CV_TM_CCORR         = 2,
@@ -2553,16 +2911,20 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
          
 
         ///
-        /// This is the template matching function from the cv library 
+        /// The result map comes from the selected backend, the search of the location is the same for all
         ///
-       
-        //cvMatchTemplate(iplSrc, iplTpl, res, method);
-        matchTemplate(sourceMat, templateMat, resMat, method);
+        FloatProcessor res = matcher.match(src, method);
+        if (res == null) return new double[3];
+        return findMatch(res, method, subPix, searchLine);
+    }
+    
+    public static double[]  findMatch(FloatProcessor res, int method, boolean subPix, double[] searchLine) {
+    	
+        double[] coord_res = new double[3];
         
         //////Search the location of the template
         
         
-        FloatIndexer resVal = resMat.createIndexer();
         if (searchLine!=null && !(searchLine[2]==0.0 && searchLine[3]==0.0)){  //////////////////// Searching the middle part along the normal line
         	
         	int[] coord = new int[2];
@@ -2571,8 +2933,8 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
             double minmax=0.0;
             boolean firstPointFound = false;
             int sWh, sWw;
-            sWh = resMat.rows();
-            sWw = resMat.cols();
+            sWh = res.getHeight();
+            sWw = res.getWidth();
             double x0=searchLine[0], y0=searchLine[1], dx0=searchLine[2], dy0=searchLine[3];
             boolean searchMin = (method == 0 || method == 1);
             if (Math.abs(dx0)>Math.abs(dy0))
@@ -2581,7 +2943,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 	int row = (int)(y0 + dy0*(col-x0)/dx0);
                 	if (row>=0 && row < sWh)
                 	{
-                		double val=resVal.get(row, col);
+                		double val=res.getf(col, row);
                 		if (!firstPointFound) {
                 			firstPointFound = true;
                 			minmax=val;
@@ -2601,7 +2963,7 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 	int col = (int)(x0 + dx0*(row-y0)/dy0);
                 	if (col>=0 && col < sWw)
                 	{
-                		double val=resVal.get(row, col);
+                		double val=res.getf(col, row);
                 		if (!firstPointFound) {
                 			firstPointFound = true;
                 			minmax=val;
@@ -2627,19 +2989,19 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 
                 // border values
                 if (x == 0
-                        || x == resMat.cols() - 1
+                        || x == res.getWidth() - 1
                         || y == 0
-                        || y == resMat.rows() - 1) {
+                        || y == res.getHeight() - 1) {
                     dx = 0.0;
                     dy = 0.0;
                 } else {
                 	
-                	double fxx=resVal.get(y, x - 1) - 2.0 * resVal.get( y, x) + resVal.get(y, x + 1),
-                		   fyy=resVal.get(y - 1, x) - 2.0 * resVal.get( y, x) + resVal.get(y + 1, x),
-                		   fxy=(resVal.get(y + 1, x + 1) + resVal.get(y - 1, x - 1)
-                		   		- resVal.get(y - 1, x + 1) - resVal.get(y + 1, x - 1))/4.0,
-                		   fx=(resVal.get(y, x + 1) - resVal.get(y, x - 1))/2.0,
-                		   fy=(resVal.get(y + 1, x) - resVal.get(y - 1, x))/2.0,
+                	double fxx=res.getf(x - 1, y) - 2.0 * res.getf(x, y) + res.getf(x + 1, y),
+                		   fyy=res.getf(x, y - 1) - 2.0 * res.getf(x, y) + res.getf(x, y + 1),
+                		   fxy=(res.getf(x + 1, y + 1) + res.getf(x - 1, y - 1)
+                		   		- res.getf(x + 1, y - 1) - res.getf(x - 1, y + 1))/4.0,
+                		   fx=(res.getf(x + 1, y) - res.getf(x - 1, y))/2.0,
+                		   fy=(res.getf(x, y + 1) - res.getf(x, y - 1))/2.0,
                 		   fr=fx*cos + fy*sin,
                 		   frr=fxx*cos*cos + fyy*sin*sin + fxy*sin*cos;
                 	
@@ -2663,20 +3025,15 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
             
         	
         } else { /////////////////// Searching matching position inside the search area
-        	DoublePointer minVal= new DoublePointer(0.0);
-        	DoublePointer maxVal= new DoublePointer(0.0);
-            Point min = new  Point();
-            Point max = new  Point();
-            minMaxLoc(resMat, minVal, maxVal, min, max, null);
-            if (method == 0 || method == 1) {
-            	coord_res[0] = min.x();
-            	coord_res[1] = min.y();
-            	coord_res[2] = minVal.get();
-            } else {
-            	coord_res[0] = max.x();
-            	coord_res[1] = max.y();
-            	coord_res[2] = maxVal.get();
-            }
+        	// first extremum in row order, as minMaxLoc does
+        	float[] pixels = (float[]) res.getPixels();
+        	boolean searchMin = (method == 0 || method == 1);
+        	int best = 0;
+        	for (int i = 1; i < pixels.length; i++) 
+        		if ((searchMin && pixels[i] < pixels[best]) || (!searchMin && pixels[i] > pixels[best])) best = i;
+        	coord_res[0] = best % res.getWidth();
+        	coord_res[1] = best / res.getWidth();
+        	coord_res[2] = pixels[best];
             
             if (subPix){
             	double dx, dy;
@@ -2684,19 +3041,19 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
                 
                 // border values
                 if (x == 0
-                        || x == resMat.cols() - 1
+                        || x == res.getWidth() - 1
                         || y == 0
-                        || y == resMat.rows() - 1) {
+                        || y == res.getHeight() - 1) {
                     dx = 0.0;
                     dy = 0.0;
                 } else {
                 	
-                	double fxx=resVal.get(y, x - 1) - 2.0 * resVal.get( y, x) + resVal.get(y, x + 1),
-                		   fyy=resVal.get(y - 1, x) - 2.0 * resVal.get( y, x) + resVal.get(y + 1, x),
-                		   fxy=(resVal.get(y + 1, x + 1) + resVal.get(y - 1, x - 1)
-                		   		- resVal.get(y - 1, x + 1) - resVal.get(y + 1, x - 1))/4.0,
-                		   fx=(resVal.get(y, x + 1) - resVal.get(y, x - 1))/2.0,
-                		   fy=(resVal.get(y + 1, x) - resVal.get(y - 1, x))/2.0;
+                	double fxx=res.getf(x - 1, y) - 2.0 * res.getf(x, y) + res.getf(x + 1, y),
+                		   fyy=res.getf(x, y - 1) - 2.0 * res.getf(x, y) + res.getf(x, y + 1),
+                		   fxy=(res.getf(x + 1, y + 1) + res.getf(x - 1, y - 1)
+                		   		- res.getf(x + 1, y - 1) - res.getf(x - 1, y + 1))/4.0,
+                		   fx=(res.getf(x + 1, y) - res.getf(x - 1, y))/2.0,
+                		   fy=(res.getf(x, y + 1) - res.getf(x, y - 1))/2.0;
                 	double denom = fxy*fxy - fxx*fyy;
                 	if (denom==0.0) {
                 		dx = 0.0;
@@ -2721,49 +3078,12 @@ public class Laser_Spot_Track4 implements PlugInFilter, DialogListener {
         return coord_res;
     }
      
-    public static double doMatch_test(ImageProcessor src, int method) {
+    public static double doMatch_test(ImageProcessor src, String matcherType, int method) {
 
-    	
-    	
-    	
-    	BufferedImage bi = null;
-    	//bi = src.getBufferedImage();
-    	//Mat sourceMat = toMatcv(bi);
-    	
-        Mat sourceMat, temp;
-        sourceMat = null;
-        
-    	
-    	switch (src.getBitDepth()) {
-    	             
-    	            case 16:
-    	            	
-    	                
-    	                bi = ((ShortProcessor) src).get16BitBufferedImage();
-    	                temp = toMatcv(bi);
-    	                temp.convertTo(sourceMat, CV_32FC1, 1 / 65535.0, 0);
-    	                break;
-    	            case 32: 
-    	            case 24:	
-    	            case 8:
-    	            	
-    	                bi = src.getBufferedImage();
-    	                sourceMat = toMatcv(bi);
-    	                break;
-    	            default:
-    	                IJ.error("Unsupported image type");
-    	                break;
-    	        }
-    	
-    	
-    	
-        
-       Size size = new Size(1, 1);
-       Mat result = new Mat(size, CV_32FC1);
-       matchTemplate(sourceMat, sourceMat, result, method);
-       FloatIndexer idx = result.createIndexer(); 
-       return idx.get(0);
-       
+    	try (TemplateMatcher matcher = TemplateMatcher.create(matcherType)) {
+    		matcher.setTemplate(src);
+    		return matcher.ideal(method);
+    	}
     }
     
 
@@ -0,0 +1,188 @@
+package laser_spot_track4;
+
+import ij.ImagePlus;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/*
+ * The displacement plot drawn while tracking, from the Time and dL columns of the results. The rows are
+ * read as they are added, on the timer, into columns of a common time width,
+ * keeping the first, the last, the lowest and the highest point of every column; when the track outgrows
+ * the columns, they are merged in pairs and the width doubles. Adding a point is thus O(1), and the plot
+ * is drawn from at most four points per column, twice as many columns as the plot is wide, whatever the
+ * number of points: the lines look the same as with all the points. The plot is drawn by a timer every REFRESH_MS,
+ * if rows were added, instead of after every tracked image.
+ */
+final class LivePlot implements AutoCloseable {
+
+	static final int REFRESH_MS = 200;
+
+	private final ImagePlus image;
+	private final ResultColumns results;
+	private final String xLabel, yLabel;
+	private final int columns;
+	// per column: time and value of the first, the last, the lowest and the highest point, number of points
+	private final double[] firstTime, first, lastTime, last, lowTime, low, highTime, high;
+	private final int[] count;
+	private double width = 0.0;
+	// the plot always shows the time 0 and the displacement 0
+	private double timeMin = 0.0, timeMax = 0.0, valueMin = 0.0, valueMax = 0.0;
+	// rows of the results read so far
+	private int rows = 0;
+	private boolean changed = false;
+	private final Timer timer;
+
+	/** @param live the plot is drawn on the timer, otherwise only by draw() */
+	LivePlot(ImagePlus image, ResultColumns results, String xLabel, String yLabel, boolean live) {
+		this.image = image;
+		this.results = results;
+		this.xLabel = xLabel;
+		this.yLabel = yLabel;
+		columns = 2 * Math.max(100, PlotWindow.plotWidth);
+		firstTime = new double[columns];
+		first = new double[columns];
+		lastTime = new double[columns];
+		last = new double[columns];
+		lowTime = new double[columns];
+		low = new double[columns];
+		highTime = new double[columns];
+		high = new double[columns];
+		count = new int[columns];
+		timer = new Timer(REFRESH_MS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (update()) draw();
+			}
+		});
+		timer.setCoalesce(true);
+		if (live) timer.start();
+	}
+
+	// Reads the rows added to the results, true if there are points to draw
+	private synchronized boolean update() {
+		for (int size = results.size(); rows < size; rows++)
+			add(results.value(rows, ResultColumns.TIME), results.value(rows, ResultColumns.DL));
+		return changed;
+	}
+
+	private void add(double time, double value) {
+
+		if (Double.isNaN(time) || Double.isInfinite(time) || Double.isNaN(value) || Double.isInfinite(value)) return;
+		// the first time after 0 sets the width, later ones merge the columns as needed
+		if (width == 0.0 && time > 0.0) width = time / columns;
+		int c = column(time);
+		while (c >= columns) {
+			merge();
+			c = column(time);
+		}
+		if (count[c] == 0) {
+			first[c] = value;
+			firstTime[c] = time;
+		}
+		last[c] = value;
+		lastTime[c] = time;
+		if (count[c] == 0 || value < low[c]) {
+			low[c] = value;
+			lowTime[c] = time;
+		}
+		if (count[c] == 0 || value > high[c]) {
+			high[c] = value;
+			highTime[c] = time;
+		}
+		count[c]++;
+		timeMin = Math.min(timeMin, time);
+		timeMax = Math.max(timeMax, time);
+		valueMin = Math.min(valueMin, value);
+		valueMax = Math.max(valueMax, value);
+		changed = true;
+	}
+
+	private int column(double time) {
+		return width == 0.0 || time <= 0.0 ? 0 : (int) Math.min(Integer.MAX_VALUE, time / width);
+	}
+
+	private void merge() {
+		for (int c = 0; c < columns; c += 2) {
+			int m = c / 2;
+			firstTime[m] = firstTime[c];
+			first[m] = first[c];
+			lastTime[m] = lastTime[c];
+			last[m] = last[c];
+			lowTime[m] = lowTime[c];
+			low[m] = low[c];
+			highTime[m] = highTime[c];
+			high[m] = high[c];
+			count[m] = count[c];
+			if (count[c + 1] == 0) continue;
+			if (count[m] == 0) {
+				first[m] = first[c + 1];
+				firstTime[m] = firstTime[c + 1];
+			}
+			last[m] = last[c + 1];
+			lastTime[m] = lastTime[c + 1];
+			if (count[m] == 0 || low[c + 1] < low[m]) {
+				low[m] = low[c + 1];
+				lowTime[m] = lowTime[c + 1];
+			}
+			if (count[m] == 0 || high[c + 1] > high[m]) {
+				high[m] = high[c + 1];
+				highTime[m] = highTime[c + 1];
+			}
+			count[m] += count[c + 1];
+		}
+		for (int c = columns / 2; c < columns; c++) count[c] = 0;
+		width *= 2;
+	}
+
+	/** Draws the plot with the points added so far */
+	void draw() {
+
+		float[] x, y;
+		double x0, x1, y0, y1;
+		synchronized (this) {
+			update();
+			int n = 0;
+			for (int c = 0; c < columns; c++) n += count[c] > 1 ? 4 : count[c];
+			x = new float[n];
+			y = new float[n];
+			int i = 0;
+			for (int c = 0; c < columns; c++) {
+				if (count[c] == 0) continue;
+				x[i] = (float) firstTime[c];
+				y[i++] = (float) first[c];
+				if (count[c] == 1) continue;
+				// the lowest and the highest point in the order of time
+				boolean lowFirst = lowTime[c] <= highTime[c];
+				x[i] = (float) (lowFirst ? lowTime[c] : highTime[c]);
+				y[i++] = (float) (lowFirst ? low[c] : high[c]);
+				x[i] = (float) (lowFirst ? highTime[c] : lowTime[c]);
+				y[i++] = (float) (lowFirst ? high[c] : low[c]);
+				x[i] = (float) lastTime[c];
+				y[i++] = (float) last[c];
+			}
+			double height = valueMax - valueMin;
+			if (height == 0.0) height = 1.0;
+			x0 = timeMin;
+			x1 = timeMax > timeMin ? timeMax : timeMin + 1.0;
+			y0 = valueMin - 0.1 * height;
+			y1 = valueMax + 0.1 * height;
+			changed = false;
+		}
+		Plot plot = new Plot(image.getTitle(), xLabel, yLabel);
+		plot.setLimits(x0, x1, y0, y1);
+		plot.addPoints(x, y, Plot.LINE);
+		image.setProcessor(null, plot.getProcessor());
+	}
+
+	/** Stops the timer and draws the last points */
+	@Override
+	public void close() {
+		timer.stop();
+		if (update()) draw();
+	}
+}
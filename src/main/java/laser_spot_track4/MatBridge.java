@@ -0,0 +1,76 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/*
+ * Direct bridge between ImageJ processors and OpenCV Mats.
+ * The primitive pixel array of the processor is put into the Mat in one bulk copy,
+ * without the BufferedImage/Java2D round trip, and the native bit depth is kept:
+ * 8-bit -> CV_8UC1, 16-bit -> CV_32FC1 (scaled by 1/65535, matchTemplate does not take CV_16U),
+ * 32-bit -> CV_32FC1, RGB -> CV_8UC3 (BGR order, as OpenCV expects).
+ */
+final class MatBridge {
+
+	private MatBridge() {
+	}
+
+	/** Returns a new Mat holding the pixels of the processor, or null for unsupported types */
+	static Mat toMat(ImageProcessor ip) {
+		Mat mat = new Mat(), staging = new Mat();
+		try {
+			if (toMat(ip, mat, staging) == null) {
+				mat.close();
+				return null;
+			}
+			return mat;
+		} finally {
+			staging.close();
+		}
+	}
+
+	/**
+	 * Puts the pixels of the processor into dst, reusing its allocation when the size and type
+	 * are unchanged. The staging Mat holds the intermediate 16-bit or BGRA data and is reused as well.
+	 * Returns dst, or null for unsupported types.
+	 */
+	static Mat toMat(ImageProcessor ip, Mat dst, Mat staging) {
+
+		int w = ip.getWidth(), h = ip.getHeight();
+		Object pixels = ip.getPixels();
+
+		switch (ip.getBitDepth()) {
+			case 8:
+				dst.create(h, w, CV_8UC1);
+				dst.data().put((byte[]) pixels);
+				break;
+			case 16:
+				staging.create(h, w, CV_16UC1);
+				new ShortPointer(staging.data()).put((short[]) pixels);
+				staging.convertTo(dst, CV_32FC1, 1 / 65535.0, 0);
+				break;
+			case 32:
+				dst.create(h, w, CV_32FC1);
+				new FloatPointer(dst.data()).put((float[]) pixels);
+				break;
+			case 24:
+				// packed 0xAARRGGBB ints are B,G,R,A bytes in little endian memory
+				staging.create(h, w, CV_8UC4);
+				new IntPointer(staging.data()).put((int[]) pixels);
+				cvtColor(staging, dst, COLOR_BGRA2BGR);
+				break;
+			default:
+				IJ.error("Unsupported image type");
+				return null;
+		}
+		return dst;
+	}
+}
@@ -0,0 +1,97 @@
+package laser_spot_track4;
+
+/*
+ * Scores of the matchTemplate methods 0-5 computed from correlations and window sums,
+ * following common_matchTemplate of OpenCV, including its rounding guards.
+ * The correlations are taken with the zero mean template, which keeps them small and accurate;
+ * the raw correlation is recovered with the window sums: corr(I,T) = corr0 + mean(T)*sum(I).
+ * Used by the matchers that do not call OpenCV's matchTemplate.
+ */
+final class MatchScores {
+
+	static final int TM_SQDIFF = 0, TM_SQDIFF_NORMED = 1, TM_CCORR = 2, TM_CCORR_NORMED = 3, TM_CCOEFF = 4, TM_CCOEFF_NORMED = 5;
+	private static final double DBL_EPSILON = Math.ulp(1.0), FLT_EPSILON = Math.ulp(1.0f);
+
+	final int method, cn, tw, th;
+	// true if the window sums of squares are needed
+	final boolean needSquares;
+	// true for a flat template with TM_CCOEFF_NORMED, all scores are 1 then
+	final boolean flat;
+	private final int numType;
+	private final boolean isNormed;
+	private final double invArea, templSum2, templNorm;
+	private final double[] templMean;
+
+	/**
+	 * @param templMean mean of every template channel
+	 * @param templSdv standard deviation of every template channel (population)
+	 */
+	MatchScores(int method, int tw, int th, double[] templMean, double[] templSdv) {
+
+		this.method = method;
+		this.tw = tw;
+		this.th = th;
+		this.templMean = templMean.clone();
+		cn = templMean.length;
+		invArea = 1.0 / ((double) tw * th);
+
+		// 0: CCORR, 1: CCOEFF, 2: SQDIFF, as in OpenCV
+		numType = method == TM_CCORR || method == TM_CCORR_NORMED ? 0
+				: method == TM_CCOEFF || method == TM_CCOEFF_NORMED ? 1 : 2;
+		isNormed = method == TM_CCORR_NORMED || method == TM_SQDIFF_NORMED || method == TM_CCOEFF_NORMED;
+		needSquares = isNormed || numType == 2;
+
+		double norm = 0, sum2;
+		for (int k = 0; k < cn; k++) norm += templSdv[k] * templSdv[k];
+		sum2 = norm;
+		for (int k = 0; k < cn; k++) sum2 += templMean[k] * templMean[k];
+		flat = norm < DBL_EPSILON && method == TM_CCOEFF_NORMED;
+		if (numType != 1) norm = sum2;
+		templSum2 = sum2 / invArea;
+		templNorm = Math.sqrt(norm) / Math.sqrt(invArea);
+	}
+
+	/**
+	 * Scores of one result row.
+	 * @param corr correlations with the zero mean template, summed over the channels
+	 * @param s0 integral row at the top of the windows, channels interleaved
+	 * @param s1 integral row below the windows
+	 * @param q0 integral row of the squares at the top of the windows, unused if needSquares is false
+	 * @param q1 integral row of the squares below the windows
+	 * @param out scores of the row
+	 */
+	void row(double[] corr, double[] s0, double[] s1, double[] q0, double[] q1, float[] out, int rw) {
+
+		for (int x = 0; x < rw; x++) {
+			int i0 = x * cn, i1 = (x + tw) * cn;
+			double num = corr[x], wndMean2 = 0, wndSum2 = 0, t;
+
+			for (int k = 0; k < cn; k++) {
+				t = s1[i1 + k] - s1[i0 + k] - s0[i1 + k] + s0[i0 + k];
+				if (numType == 1) wndMean2 += t * t;
+				else num += t * templMean[k];
+			}
+			wndMean2 *= invArea;
+
+			if (needSquares) {
+				for (int k = 0; k < cn; k++)
+					wndSum2 += q1[i1 + k] - q1[i0 + k] - q0[i1 + k] + q0[i0 + k];
+				if (numType == 2) {
+					num = wndSum2 - 2 * num + templSum2;
+					num = Math.max(num, 0.0);
+				}
+			}
+
+			if (isNormed) {
+				double diff2 = Math.max(wndSum2 - wndMean2, 0);
+				if (diff2 <= Math.min(0.5, 10 * FLT_EPSILON * wndSum2)) t = 0;	// avoid rounding errors
+				else t = Math.sqrt(diff2) * templNorm;
+
+				if (Math.abs(num) < t) num /= t;
+				else if (Math.abs(num) < t * 1.125) num = num > 0 ? 1 : -1;
+				else num = method != TM_SQDIFF_NORMED ? 0 : 1;
+			}
+			out[x] = (float) num;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package laser_spot_track4;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/*
+ * Native buffers used by one matching target (source window, template, result map,
+ * the conversion staging buffer and the float window of the native pipeline).
+ * The Mats are reused from frame to frame: Mat.create() keeps the allocation when
+ * size and type do not change, so the native footprint of a long run stays flat.
+ * Everything is freed deterministically by close().
+ * A workspace must not be shared by concurrently running matches.
+ */
+final class MatchWorkspace implements AutoCloseable {
+
+	private static final AtomicLong liveBytes = new AtomicLong();
+
+	// all native objects are allocated here, so that no PointerScope active
+	// at the time of a match can take ownership of them
+	final Mat source = new Mat(), template = new Mat(), result = new Mat(), staging = new Mat(), filtered = new Mat();
+	// spectra of the template for the DFT correlation, null until a large window is matched
+	FftMatcher.Spectra spectra;
+
+	private long heldBytes = 0;
+	private boolean closed = false;
+
+	MatchWorkspace() {
+		updateLiveBytes();
+	}
+
+	/** Recounts the bytes held by this workspace and updates the global counter */
+	void updateLiveBytes() {
+		if (closed) return;
+		long bytes = byteSize(source) + byteSize(template) + byteSize(result) + byteSize(staging) + byteSize(filtered);
+		if (spectra != null) bytes += spectra.byteSize();
+		liveBytes.addAndGet(bytes - heldBytes);
+		heldBytes = bytes;
+	}
+
+	/** Frees the spectra of the template, for a new template */
+	void clearSpectra() {
+		if (spectra != null) {
+			spectra.close();
+			spectra = null;
+		}
+	}
+
+	long heldBytes() {
+		return heldBytes;
+	}
+
+	/** Native bytes currently held by all open workspaces */
+	static long liveNativeBytes() {
+		return liveBytes.get();
+	}
+
+	static long byteSize(Mat mat) {
+		if (mat == null || mat.isNull() || mat.empty()) return 0L;
+		return mat.total() * mat.elemSize();
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		source.close();
+		template.close();
+		result.close();
+		staging.close();
+		filtered.close();
+		clearSpectra();
+		liveBytes.addAndGet(-heldBytes);
+		heldBytes = 0;
+	}
+}
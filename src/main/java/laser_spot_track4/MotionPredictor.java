@@ -0,0 +1,150 @@
+package laser_spot_track4;
+
+/*
+ * Constant-velocity Kalman filter of the displacement of a target, one independent filter per axis,
+ * with the slice as time unit. Before every frame the state is advanced with advance() to the slice of
+ * the frame, over as many slices as the tracking step skipped; the search window is centred on the
+ * predicted displacement and its margin is sized from the prediction uncertainty; the matched
+ * displacement is then fed back with update(). A skipped frame restores the state saved by copy().
+ * The acceleration noise adapts to the innovations, so the margin opens during fast bending
+ * and closes again when the motion is smooth.
+ */
+final class MotionPredictor {
+
+	// measurement noise of a match (pixels^2)
+	static final double MEASUREMENT_NOISE = 0.25;
+	// the window margin covers GATE standard deviations of the innovation
+	static final double GATE = 4.0;
+	// smallest margin of a predicted window (pixels)
+	static final int MIN_MARGIN = 6;
+	private static final double MIN_ACCEL_NOISE = 0.01;
+
+	// per axis: position, velocity and covariance [p00 p01; p01 p11]
+	private final double[] pos = new double[2], vel = new double[2],
+			p00 = new double[2], p01 = new double[2], p11 = new double[2];
+	private double accelNoise = 1.0;
+	private int updates = 0;
+	// slice of the state and slices of the last advance
+	private int slice = 0, step = 1;
+
+	MotionPredictor() {
+	}
+
+	private MotionPredictor(MotionPredictor m) {
+		set(m);
+	}
+
+	/** Copy of the state, for restore() */
+	MotionPredictor copy() {
+		return new MotionPredictor(this);
+	}
+
+	/** Goes back to a state saved by copy() */
+	void restore(MotionPredictor m) {
+		set(m);
+	}
+
+	private void set(MotionPredictor m) {
+		for (int a = 0; a < 2; a++) {
+			pos[a] = m.pos[a];
+			vel[a] = m.vel[a];
+			p00[a] = m.p00[a];
+			p01[a] = m.p01[a];
+			p11[a] = m.p11[a];
+		}
+		accelNoise = m.accelNoise;
+		updates = m.updates;
+		slice = m.slice;
+		step = m.step;
+	}
+
+	/** Starts over at the given displacement and slice, with an unknown velocity */
+	void reset(double x, double y, int slice) {
+		this.slice = slice;
+		step = 1;
+		pos[0] = x;
+		pos[1] = y;
+		for (int a = 0; a < 2; a++) {
+			vel[a] = 0.0;
+			p00[a] = MEASUREMENT_NOISE;
+			p01[a] = 0.0;
+			p11[a] = 0.0;
+		}
+		accelNoise = 1.0;
+		updates = 1;
+	}
+
+	/** True when the velocity is known, i.e. after two matched frames */
+	boolean ready() {
+		return updates >= 2;
+	}
+
+	/** Moves the state ahead to the slice; a frame without update() widens the uncertainty */
+	void advance(int slice) {
+		if (updates == 0) reset(0.0, 0.0, slice - 1);
+		double d = Math.max(1, slice - this.slice), q = accelNoise;
+		this.slice = slice;
+		step = (int) d;
+		for (int a = 0; a < 2; a++) {
+			pos[a] += vel[a] * d;
+			// F P F' + Q for F = [1 d; 0 1] and the discrete white acceleration noise
+			double n00 = p00[a] + 2 * d * p01[a] + d * d * p11[a] + q * d * d * d * d / 4,
+					n01 = p01[a] + d * p11[a] + q * d * d * d / 2,
+					n11 = p11[a] + q * d * d;
+			p00[a] = n00;
+			p01[a] = n01;
+			p11[a] = n11;
+		}
+	}
+
+	double predictedX() {
+		return pos[0];
+	}
+
+	double predictedY() {
+		return pos[1];
+	}
+
+	/** Margin of the search window around the predicted position, at most maxArea */
+	int margin(int maxArea) {
+		double s = Math.max(p00[0], p00[1]) + MEASUREMENT_NOISE;
+		int margin = (int) Math.ceil(GATE * Math.sqrt(s));
+		return Math.min(maxArea, Math.max(MIN_MARGIN, margin));
+	}
+
+	/** Corrects the state with the matched displacement */
+	void update(double x, double y) {
+		if (updates < 2) {
+			// the second match gives the first velocity, over the slices of the last advance
+			vel[0] += (x - pos[0]) / step;
+			vel[1] += (y - pos[1]) / step;
+			pos[0] = x;
+			pos[1] = y;
+			for (int a = 0; a < 2; a++) {
+				p00[a] = MEASUREMENT_NOISE;
+				p01[a] = MEASUREMENT_NOISE / step;
+				p11[a] = 2 * MEASUREMENT_NOISE / ((double) step * step) + accelNoise;
+			}
+			updates++;
+			return;
+		}
+		double nis = 0;
+		double[] z = {x, y};
+		for (int a = 0; a < 2; a++) {
+			double innovation = z[a] - pos[a], s = p00[a] + MEASUREMENT_NOISE,
+					k0 = p00[a] / s, k1 = p01[a] / s;
+			pos[a] += k0 * innovation;
+			vel[a] += k1 * innovation;
+			double n00 = (1 - k0) * p00[a],
+					n01 = (1 - k0) * p01[a],
+					n11 = p11[a] - k1 * p01[a];
+			p00[a] = n00;
+			p01[a] = n01;
+			p11[a] = n11;
+			nis += innovation * innovation / s;
+		}
+		// normalized innovation squared is 2 on average for a consistent filter
+		accelNoise = Math.max(MIN_ACCEL_NOISE, accelNoise * (0.8 + 0.1 * nis));
+		updates++;
+	}
+}
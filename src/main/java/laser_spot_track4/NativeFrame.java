@@ -0,0 +1,116 @@
+package laser_spot_track4;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/*
+ * The current slice uploaded once to native memory, for the native search window pipeline:
+ * the window is a view into the frame, and the intensity conversion and the Gaussian blur
+ * of prepareTarget are done by OpenCV on that view. The blur uses the kernel of ImageJ's
+ * GaussianBlur and replicates the window edges, like blurring the cropped window does,
+ * and the results are rounded to the bit depth of the frame as ImageJ does.
+ * The frame is read concurrently by the matchers of all targets. It is uploaded by the tracking thread only,
+ * at the start of a slice or, for a window outside the decoded regions, after the matches of the slice
+ * have finished.
+ */
+final class NativeFrame implements AutoCloseable {
+
+	static final double BLUR_SIGMA = 2.0, BLUR_ACCURACY = 0.02;
+
+	private final boolean intensity;
+	private final Mat frame = new Mat(), staging = new Mat(), kernel, weights;
+	private int bitDepth;
+	private boolean closed = false;
+
+	/**
+	 * @param intensity if true, windows are converted to 32-bit intensity like ImageConverter.convertToGray32()
+	 */
+	NativeFrame(boolean intensity) {
+		this.intensity = intensity;
+
+		// one sided kernel of ImageJ, mirrored to the full kernel
+		float[] half = new GaussianBlur().makeGaussianKernel(BLUR_SIGMA, BLUR_ACCURACY, 1000)[0];
+		int r = half.length;
+		float[] full = new float[2 * r - 1];
+		for (int i = 0; i < r; i++) full[r - 1 - i] = full[r - 1 + i] = half[i];
+		kernel = new Mat(full.length, 1, CV_32FC1);
+		new FloatPointer(kernel.data()).put(full);
+
+		// RGB weights of the conversion to intensity, in B, G, R order
+		double[] w = ColorProcessor.getWeightingFactors();
+		weights = new Mat(1, 3, CV_32FC1);
+		new FloatPointer(weights.data()).put(new float[] {(float) w[2], (float) w[1], (float) w[0]});
+	}
+
+	/**
+	 * Uploads the pixels of the slice, 16-bit data is kept unscaled. Returns false for unsupported types.
+	 * No window may be prepared meanwhile.
+	 */
+	boolean upload(ImageProcessor ip) {
+
+		bitDepth = ip.getBitDepth();
+		if (bitDepth == 16) {
+			frame.create(ip.getHeight(), ip.getWidth(), CV_16UC1);
+			new ShortPointer(frame.data()).put((short[]) ip.getPixels());
+			return true;
+		}
+		return MatBridge.toMat(ip, frame, staging) != null;
+	}
+
+	/**
+	 * Puts the converted and blurred search window into dst, with the type MatBridge gives
+	 * for the processor of prepareTarget. The temp Mat holds the float data, colour holds
+	 * the float channels of RGB windows converted to intensity and the rounded 16-bit data.
+	 */
+	void prepareWindow(Rectangle window, Mat dst, Mat temp, Mat colour) {
+
+		Rectangle r = window.intersection(new Rectangle(0, 0, frame.cols(), frame.rows()));
+		try (Rect rect = new Rect(r.x, r.y, r.width, r.height); Mat view = frame.apply(rect)) {
+			if (intensity && bitDepth == 24) {
+				view.convertTo(colour, CV_32F);
+				transform(colour, temp, weights);
+			} else view.convertTo(temp, CV_32F);
+		}
+		if (intensity || bitDepth == 32) {
+			blur(temp, dst);
+			return;
+		}
+		blur(temp, temp);
+		if (bitDepth == 16) {
+			temp.convertTo(colour, CV_16U);
+			colour.convertTo(dst, CV_32F, 1 / 65535.0, 0);
+		} else temp.convertTo(dst, CV_8U);
+	}
+
+	private void blur(Mat src, Mat dst) {
+		try (Point anchor = new Point(-1, -1)) {
+			sepFilter2D(src, dst, CV_32F, kernel, kernel, anchor, 0, BORDER_REPLICATE | BORDER_ISOLATED);
+		}
+	}
+
+	long heldBytes() {
+		return MatchWorkspace.byteSize(frame) + MatchWorkspace.byteSize(staging);
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		frame.close();
+		staging.close();
+		kernel.close();
+		weights.close();
+	}
+}
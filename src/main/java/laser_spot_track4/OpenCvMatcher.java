@@ -0,0 +1,82 @@
+package laser_spot_track4;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/*
+ * Matcher calling OpenCV's matchTemplate, or FftMatcher for large search windows.
+ * With a NativeFrame the search window is also prepared in native code.
+ * The template, its DFT spectra and the buffers are kept in a MatchWorkspace, the result map is copied
+ * into a FloatProcessor reused while its size does not change.
+ */
+final class OpenCvMatcher implements TemplateMatcher {
+
+	private final MatchWorkspace ws = new MatchWorkspace();
+	private Mat templateMat;
+	private FloatProcessor result;
+
+	@Override
+	public void setTemplate(ImageProcessor tpl) {
+		templateMat = MatBridge.toMat(tpl, ws.template, ws.staging);
+		ws.clearSpectra();
+		ws.updateLiveBytes();
+	}
+
+	@Override
+	public FloatProcessor match(ImageProcessor src, int method) {
+
+		// pixels go to OpenCV directly, keeping the native bit depth
+		// the native buffers of the workspace are reused from call to call
+		Mat sourceMat = MatBridge.toMat(src, ws.source, ws.staging);
+		if (sourceMat == null || templateMat == null) return null;
+		return match(sourceMat, method);
+	}
+
+	/** Matches the search window of the uploaded frame, cropped, converted and blurred in native code */
+	FloatProcessor match(NativeFrame frame, Rectangle window, int method) {
+
+		if (templateMat == null) return null;
+		frame.prepareWindow(window, ws.source, ws.filtered, ws.staging);
+		return match(ws.source, method);
+	}
+
+	private FloatProcessor match(Mat sourceMat, int method) {
+
+		// large windows (re-acquisition over the whole slice) are correlated in the frequency domain
+		if (FftMatcher.preferred(sourceMat, templateMat)) ws.spectra = FftMatcher.matchTemplate(sourceMat, templateMat, ws.result, method, ws.spectra);
+		else matchTemplate(sourceMat, templateMat, ws.result, method);
+		ws.updateLiveBytes();
+
+		int w = ws.result.cols(), h = ws.result.rows();
+		if (result == null || result.getWidth() != w || result.getHeight() != h) result = new FloatProcessor(w, h);
+		new FloatPointer(ws.result.data()).get((float[]) result.getPixels());
+		return result;
+	}
+
+	@Override
+	public double ideal(int method) {
+		if (templateMat == null) return 0.0;
+		try (Mat res = new Mat()) {
+			matchTemplate(templateMat, templateMat, res, method);
+			return new FloatPointer(res.data()).get();
+		}
+	}
+
+	@Override
+	public long heldBytes() {
+		return ws.heldBytes();
+	}
+
+	@Override
+	public void close() {
+		ws.close();
+		templateMat = null;
+	}
+}
@@ -0,0 +1,30 @@
+package laser_spot_track4;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Virtual stack of the time-lapse images serving the slices already decoded by the FramePrefetcher,
+ * so that displaying the analysed slice (e.g. during the failure dialogs) does not decode it again.
+ * Other slices, and images decoded only in the search areas, are opened by VirtualStack as usual.
+ */
+class PrefetchedVirtualStack extends VirtualStack {
+
+	private final FramePrefetcher prefetcher;
+
+	/** Copy of the given stack of images */
+	PrefetchedVirtualStack(VirtualStack stack, FramePrefetcher prefetcher) {
+		super(stack.getWidth(), stack.getHeight(), stack.getColorModel(), stack.getDirectory());
+		this.prefetcher = prefetcher;
+		setBitDepth(stack.getBitDepth());
+		for (int i = 1; i <= stack.getSize(); i++) addSlice(stack.getFileName(i));
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		FrameIngest frame = prefetcher.peek(getFileName(n));
+		// the cached pixels are shared with the analysis, the display gets a copy
+		if (frame != null && frame.complete()) return frame.processor.duplicate();
+		return super.getProcessor(n);
+	}
+}
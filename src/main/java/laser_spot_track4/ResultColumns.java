@@ -0,0 +1,195 @@
+package laser_spot_track4;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * The per-image outputs of the track in primitive columns, one row per tracked image: the columns of the
+ * ResultsTable the plugin used to fill (Time, Frame, File, dX_pix, dY_pix, X_abs, Y_abs, dL) and the match
+ * scores of the spot and of the four marks, shown and saved after them. The rows are kept in chunks of
+ * CHUNK_ROWS, one buffer per chunk with the columns one after the other, on the heap or off-heap; a full
+ * chunk is never copied. The stored Frame is the slice of the image, the table shows the row number from 1
+ * as before. The File column keeps an index into the distinct names, and for a video no name at all: the
+ * name is made from the slice label.
+ *
+ * Rows are appended by the tracking thread only. The size is published after the row is written, so the
+ * results view, the plot and the overlay read the rows below size() without locking.
+ * Values are formatted by format() as ResultsTable does: a column shows whole numbers without decimals,
+ * unless one of its first AUTO_ROWS values is not whole, then all its values have the precision.
+ * save() writes the file ResultsTable.save() would write.
+ */
+final class ResultColumns {
+
+	static final String[] HEADINGS = {"Time", "Frame", "File", "dX_pix", "dY_pix", "X_abs", "Y_abs", "dL",
+			"Spot_score", "Mark1_score", "Mark2_score", "Mark3_score", "Mark4_score"};
+	static final int TIME = 0, FRAME = 1, FILE = 2, DX = 3, DY = 4, X_ABS = 5, Y_ABS = 6, DL = 7,
+			SPOT_SCORE = 8, MARK1_SCORE = 9, MARK2_SCORE = 10, MARK3_SCORE = 11, MARK4_SCORE = 12;
+	static final int CHUNK_ROWS = 1 << 13;
+	// rows deciding the decimal places of a column, as in ResultsTable.addValue()
+	static final int AUTO_ROWS = 24;
+	// bytes per value of the columns: doubles for the results, ints for the slice and the file, floats for the scores
+	static final int[] BYTES = {8, 4, 4, 8, 8, 8, 8, 8, 4, 4, 4, 4, 4};
+
+	/** Name of the image of a slice, for the rows added without a name */
+	interface Labels {
+		String label(int slice);
+	}
+
+	private final int precision;
+	private final boolean offHeap;
+	private final Labels labels;
+	private final int[] offsets = new int[BYTES.length];
+	// columns with decimals in all rows
+	private final boolean[] fixed = new boolean[BYTES.length];
+	private final int chunkBytes;
+	private ByteBuffer[] chunks = new ByteBuffer[16];
+	private final ArrayList<String> names = new ArrayList<String>();
+	private volatile int size = 0;
+
+	/**
+	 * @param precision decimal places of the values, the Analyzer precision; at least 3 as in a new ResultsTable
+	 * @param offHeap the chunks are allocated outside the Java heap
+	 * @param labels names of the images of the rows added without a name, or null
+	 */
+	ResultColumns(int precision, boolean offHeap, Labels labels) {
+		this.precision = Math.max(3, precision);
+		this.offHeap = offHeap;
+		this.labels = labels;
+		int bytes = 0;
+		for (int c = 0; c < BYTES.length; c++) {
+			offsets[c] = bytes;
+			bytes += BYTES[c] * CHUNK_ROWS;
+		}
+		chunkBytes = bytes;
+	}
+
+	/**
+	 * Appends a row; on the tracking thread only.
+	 * @param file name of the image, or null for the label of the slice
+	 * @param scores match scores of the spot and of the marks 1 to 4
+	 */
+	void add(double time, int slice, String file, double dX, double dY, double xAbs, double yAbs, double dL, double... scores) {
+
+		int row = size;
+		int chunk = row / CHUNK_ROWS;
+		if (chunk == chunks.length) chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+		if (chunks[chunk] == null)
+			chunks[chunk] = (offHeap ? ByteBuffer.allocateDirect(chunkBytes) : ByteBuffer.allocate(chunkBytes)).order(ByteOrder.nativeOrder());
+		ByteBuffer buffer = chunks[chunk];
+		int r = row % CHUNK_ROWS;
+		buffer.putDouble(offsets[TIME] + 8 * r, time);
+		buffer.putInt(offsets[FRAME] + 4 * r, slice);
+		buffer.putInt(offsets[FILE] + 4 * r, fileIndex(file));
+		buffer.putDouble(offsets[DX] + 8 * r, dX);
+		buffer.putDouble(offsets[DY] + 8 * r, dY);
+		buffer.putDouble(offsets[X_ABS] + 8 * r, xAbs);
+		buffer.putDouble(offsets[Y_ABS] + 8 * r, yAbs);
+		buffer.putDouble(offsets[DL] + 8 * r, dL);
+		for (int s = 0; s <= MARK4_SCORE - SPOT_SCORE; s++)
+			buffer.putFloat(offsets[SPOT_SCORE + s] + 4 * r, s < scores.length ? (float) scores[s] : Float.NaN);
+		if (row < AUTO_ROWS)
+			for (int c = 0; c < BYTES.length; c++)
+				if (c != FRAME && c != FILE && !whole(value(buffer, r, c))) fixed[c] = true;
+		size = row + 1;
+	}
+
+	// the images of a sequence share the name of the reference image
+	private int fileIndex(String file) {
+		if (file == null) return -1;
+		synchronized (names) {
+			int last = names.size() - 1;
+			if (last < 0 || !file.equals(names.get(last))) names.add(file);
+			return names.size() - 1;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/** Decimal places of the values */
+	int precision() {
+		return precision;
+	}
+
+	/** Value of a column of doubles or floats */
+	double value(int row, int column) {
+		return value(chunk(row), row % CHUNK_ROWS, column);
+	}
+
+	private double value(ByteBuffer buffer, int r, int column) {
+		return BYTES[column] == 8 ? buffer.getDouble(offsets[column] + 8 * r) : buffer.getFloat(offsets[column] + 4 * r);
+	}
+
+	/** Slice of the image of the row */
+	int slice(int row) {
+		return chunk(row).getInt(offsets[FRAME] + 4 * (row % CHUNK_ROWS));
+	}
+
+	/** Name of the image of the row */
+	String file(int row) {
+		int index = chunk(row).getInt(offsets[FILE] + 4 * (row % CHUNK_ROWS));
+		if (index < 0) return labels != null ? labels.label(slice(row)) : "";
+		synchronized (names) {
+			return names.get(index);
+		}
+	}
+
+	private ByteBuffer chunk(int row) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		return chunks[row / CHUNK_ROWS];
+	}
+
+	/** Value of the row as shown in a ResultsTable, for the view, the file written while tracking and save() */
+	String get(int row, int column) {
+		if (column == FRAME) return Integer.toString(row + 1);
+		if (column == FILE) return file(row);
+		return format(value(row, column), precision, fixed[column]);
+	}
+
+	/**
+	 * Value as ResultsTable shows and saves it.
+	 * @param fixed the column has decimals in all rows, otherwise whole numbers have none
+	 */
+	static String format(double value, int precision, boolean fixed) {
+		return !fixed && (int) value == value && precision >= 0 ? ResultsTable.d2s(value, 0) : ResultsTable.d2s(value, precision);
+	}
+
+	/** False for a value that gives decimals to its column within the first AUTO_ROWS */
+	static boolean whole(double value) {
+		return Double.isNaN(value) || (int) value == value;
+	}
+
+	/** Writes the rows as ResultsTable.save(): tab separated, or comma separated for a .csv file */
+	void save(String path) throws IOException {
+
+		String separator = path.endsWith(".csv") ? "," : "\t";
+		int rows = size();
+		try (Writer writer = new BufferedWriter(new FileWriter(path), 1 << 16)) {
+			writeRow(writer, HEADINGS, separator);
+			String[] row = new String[HEADINGS.length];
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < row.length; c++) row[c] = get(r, c);
+				writeRow(writer, row, separator);
+			}
+		}
+	}
+
+	static void writeRow(Writer writer, String[] row, String separator) throws IOException {
+		for (int c = 0; c < row.length; c++) {
+			if (c > 0) writer.write(separator);
+			// as ResultsTable, CSV values with commas are quoted
+			if (separator.equals(",") && row[c].contains(",")) writer.write("\"" + row[c] + "\"");
+			else writer.write(row[c]);
+		}
+		writer.write('\n');
+	}
+}
@@ -0,0 +1,274 @@
+package laser_spot_track4;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/*
+ * Binary file of the results, saved with the text file: a header with the parameters of the session, then
+ * the columns of ResultColumns one after the other, little-endian, and the names of the images. The columns
+ * are mapped when the file is opened, so a file of millions of rows is read at once, and the columns are
+ * available as buffers for re-plotting and fitting. The file is converted to the text file of the results,
+ * or to CSV, also from the command line:
+ *
+ *   java -cp Laser_Spot_Track4.jar:ij.jar laser_spot_track4.ResultsFile "Results - project.lsr" out.csv
+ *
+ * Layout: a header of HEADER_BYTES (magic, version, rows, number of columns and of names, precision,
+ * method, template size, search area, reference slice, distance between the marks, the reference
+ * positions of the spot and of the marks 1 to 4, the offsets of the columns and of the names); the columns
+ * from 8 byte aligned offsets, doubles for the results, ints for the slices and the name indexes, floats for
+ * the match scores; then the offsets of the names in the UTF-8 bytes of the names that follow them.
+ */
+public final class ResultsFile implements AutoCloseable {
+
+	public static final String EXTENSION = ".lsr";
+	public static final int TIME = ResultColumns.TIME, FRAME = ResultColumns.FRAME, FILE = ResultColumns.FILE,
+			DX = ResultColumns.DX, DY = ResultColumns.DY, X_ABS = ResultColumns.X_ABS, Y_ABS = ResultColumns.Y_ABS,
+			DL = ResultColumns.DL, SPOT_SCORE = ResultColumns.SPOT_SCORE, MARK1_SCORE = ResultColumns.MARK1_SCORE,
+			MARK2_SCORE = ResultColumns.MARK2_SCORE, MARK3_SCORE = ResultColumns.MARK3_SCORE,
+			MARK4_SCORE = ResultColumns.MARK4_SCORE;
+	private static final long MAGIC = 0x4c53545245534c54L; // "LSTRESLT"
+	private static final int VERSION = 1, HEADER_BYTES = 256, COLUMNS = ResultColumns.HEADINGS.length;
+
+	private final int rows, precision, method, templSize, sArea, refSlice;
+	private final double markDist;
+	private final float[] refPositions = new float[10];
+	private final ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+	private final IntBuffer nameOffsets;
+	private final ByteBuffer names;
+	private final RandomAccessFile file;
+
+	private ResultsFile(RandomAccessFile file) throws IOException {
+		this.file = file;
+		FileChannel channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		if (header.limit() < HEADER_BYTES || header.getLong() != MAGIC) throw new IOException("not a results file");
+		if (header.getInt() != VERSION) throw new IOException("unknown version of the results file");
+		rows = header.getInt();
+		if (header.getInt() != COLUMNS) throw new IOException("unknown columns in the results file");
+		int count = header.getInt();
+		precision = header.getInt();
+		method = header.getInt();
+		templSize = header.getInt();
+		sArea = header.getInt();
+		refSlice = header.getInt();
+		markDist = header.getDouble();
+		for (int i = 0; i < refPositions.length; i++) refPositions[i] = header.getFloat();
+		for (int c = 0; c < COLUMNS; c++) {
+			long offset = header.getLong();
+			columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) rows * ResultColumns.BYTES[c])
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		long namesOffset = header.getLong();
+		nameOffsets = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset, 4L * (count + 1))
+				.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		names = channel.map(FileChannel.MapMode.READ_ONLY, namesOffset + 4L * (count + 1), nameOffsets.get(count));
+	}
+
+	/** Opens the file and maps its columns */
+	public static ResultsFile open(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			return new ResultsFile(file);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the results with the parameters of the session.
+	 * @param refPositions x and y of the reference positions of the spot and of the marks 1 to 4
+	 */
+	static void write(String path, ResultColumns results, int method, int templSize, int sArea,
+			int refSlice, double markDist, float[] refPositions) throws IOException {
+
+		int rows = results.size();
+		// the name index of every row, the names of a sequence are stored once
+		int[] nameIndex = new int[rows];
+		ArrayList<byte[]> names = new ArrayList<byte[]>();
+		String last = null;
+		long namesBytes = 0;
+		for (int r = 0; r < rows; r++) {
+			String name = results.file(r);
+			if (!name.equals(last)) {
+				byte[] b = name.getBytes(StandardCharsets.UTF_8);
+				names.add(b);
+				namesBytes += b.length;
+				last = name;
+			}
+			nameIndex[r] = names.size() - 1;
+		}
+		if (namesBytes > Integer.MAX_VALUE) throw new IOException("too many image names");
+
+		long[] offsets = new long[COLUMNS];
+		long offset = HEADER_BYTES;
+		for (int c = 0; c < COLUMNS; c++) {
+			offsets[c] = offset;
+			offset += ((long) rows * ResultColumns.BYTES[c] + 7) / 8 * 8;
+		}
+		long namesOffset = offset;
+
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putLong(MAGIC).putInt(VERSION).putInt(rows).putInt(COLUMNS).putInt(names.size());
+			buffer.putInt(results.precision()).putInt(method).putInt(templSize).putInt(sArea).putInt(refSlice).putDouble(markDist);
+			for (int i = 0; i < 10; i++) buffer.putFloat(refPositions[i]);
+			for (long o : offsets) buffer.putLong(o);
+			buffer.putLong(namesOffset);
+			buffer.position(HEADER_BYTES);
+			for (int c = 0; c < COLUMNS; c++) {
+				for (int r = 0; r < rows; r++) {
+					if (buffer.remaining() < 8) write(channel, buffer);
+					if (c == FRAME) buffer.putInt(results.slice(r));
+					else if (c == FILE) buffer.putInt(nameIndex[r]);
+					else if (ResultColumns.BYTES[c] == 8) buffer.putDouble(results.value(r, c));
+					else buffer.putFloat((float) results.value(r, c));
+				}
+				if (buffer.remaining() < 8) write(channel, buffer);
+				for (long pad = offsets[c] + (long) rows * ResultColumns.BYTES[c]; pad % 8 != 0; pad++) buffer.put((byte) 0);
+			}
+			int nameOffset = 0;
+			for (int i = 0; i <= names.size(); i++) {
+				if (buffer.remaining() < 4) write(channel, buffer);
+				buffer.putInt(nameOffset);
+				if (i < names.size()) nameOffset += names.get(i).length;
+			}
+			for (byte[] b : names) {
+				if (buffer.remaining() < b.length) write(channel, buffer);
+				if (b.length <= buffer.capacity()) buffer.put(b);
+				else for (ByteBuffer name = ByteBuffer.wrap(b); name.hasRemaining();) channel.write(name);
+			}
+			write(channel, buffer);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	/** Decimal places of the values in the text file */
+	public int precision() {
+		return precision;
+	}
+
+	/** Matching method, as in the dialog: 0 square difference to 5 normalized correlation coefficient */
+	public int method() {
+		return method;
+	}
+
+	public int templateSize() {
+		return templSize;
+	}
+
+	public int searchArea() {
+		return sArea;
+	}
+
+	public int referenceSlice() {
+		return refSlice;
+	}
+
+	/** Distance between the marks in mm */
+	public double markDistance() {
+		return markDist;
+	}
+
+	/** x and y of the reference positions of the spot and of the marks 1 to 4 */
+	public float[] referencePositions() {
+		return refPositions.clone();
+	}
+
+	/** Value of a column of doubles or floats */
+	public double value(int row, int column) {
+		return ResultColumns.BYTES[column] == 8 ? columns[column].getDouble(8 * row) : columns[column].getFloat(4 * row);
+	}
+
+	/** Slice of the image of the row */
+	public int frame(int row) {
+		return columns[FRAME].getInt(4 * row);
+	}
+
+	/** Name of the image of the row */
+	public String file(int row) {
+		int index = columns[FILE].getInt(4 * row);
+		int start = nameOffsets.get(index), end = nameOffsets.get(index + 1);
+		byte[] b = new byte[end - start];
+		ByteBuffer name = names.duplicate();
+		name.position(start);
+		name.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/** A column of doubles: Time, dX_pix, dY_pix, X_abs, Y_abs or dL */
+	public DoubleBuffer doubles(int column) {
+		if (ResultColumns.BYTES[column] != 8) throw new IllegalArgumentException("not a column of doubles: " + column);
+		return columns[column].duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}
+
+	/** A column of floats: the match scores */
+	public FloatBuffer floats(int column) {
+		if (column < SPOT_SCORE) throw new IllegalArgumentException("not a column of floats: " + column);
+		return columns[column].duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+	}
+
+	/** Writes the text file of the results, comma separated for a .csv file */
+	public void export(String path) throws IOException {
+
+		String separator = path.endsWith(".csv") ? "," : "\t";
+		try (Writer writer = new BufferedWriter(new FileWriter(path), 1 << 16)) {
+			ResultColumns.writeRow(writer, ResultColumns.HEADINGS, separator);
+			String[] row = new String[COLUMNS];
+			// the decimal places of the columns, as decided by the first rows
+			boolean[] fixed = new boolean[COLUMNS];
+			for (int r = 0; r < Math.min(rows, ResultColumns.AUTO_ROWS); r++)
+				for (int c = 0; c < COLUMNS; c++)
+					if (c != FRAME && c != FILE && !ResultColumns.whole(value(r, c))) fixed[c] = true;
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < COLUMNS; c++) {
+					if (c == FRAME) row[c] = Integer.toString(r + 1);
+					else if (c == FILE) row[c] = file(r);
+					else row[c] = ResultColumns.format(value(r, c), precision, fixed[c]);
+				}
+				ResultColumns.writeRow(writer, row, separator);
+			}
+		}
+	}
+
+	/** The mapped columns stay readable */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/** Converts a results file: ResultsFile input.lsr output.txt|output.csv */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: ResultsFile <results" + EXTENSION + "> <output .txt or .csv>");
+			System.exit(1);
+		}
+		try (ResultsFile results = open(args[0])) {
+			results.export(args[1]);
+		}
+	}
+}
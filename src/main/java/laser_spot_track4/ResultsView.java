@@ -0,0 +1,116 @@
+package laser_spot_track4;
+
+import ij.WindowManager;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+/*
+ * Window of the results while tracking, in place of the ImageJ Results window. The table reads the
+ * ResultColumns directly and JTable formats and paints only the visible rows. The tracking thread only
+ * appends rows to the columns; a timer on the event dispatch thread announces the new rows every
+ * REFRESH_MS, all at once, and keeps the last row in view unless the table was scrolled up.
+ */
+final class ResultsView implements AutoCloseable {
+
+	static final int REFRESH_MS = 250;
+
+	private final ResultColumns columns;
+	private final JFrame frame;
+	private final JTable table;
+	private final Model model = new Model();
+	private final Timer timer;
+	// rows announced to the table, read on the event dispatch thread only
+	private int rows = 0;
+
+	private final class Model extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int getRowCount() {
+			return rows;
+		}
+
+		@Override
+		public int getColumnCount() {
+			return ResultColumns.HEADINGS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return ResultColumns.HEADINGS[column];
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+			return columns.get(row, column);
+		}
+	}
+
+	ResultsView(ResultColumns columns, String title) {
+		this.columns = columns;
+		frame = new JFrame(title);
+		table = new JTable(model);
+		table.setAutoCreateRowSorter(false);
+		table.setFillsViewportHeight(true);
+		frame.add(new JScrollPane(table));
+		frame.setSize(640, 400);
+		frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				timer.stop();
+				WindowManager.removeWindow(frame);
+			}
+		});
+		timer = new Timer(REFRESH_MS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		timer.setCoalesce(true);
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				WindowManager.addWindow(frame);
+				frame.setVisible(true);
+				timer.start();
+			}
+		});
+	}
+
+	// Announces the rows added since the last refresh; on the event dispatch thread
+	private void refresh() {
+		int size = columns.size();
+		if (size == rows) return;
+		Rectangle visible = table.getVisibleRect();
+		boolean atEnd = rows == 0 || visible.y + visible.height >= table.getRowHeight() * rows - 1;
+		int first = rows;
+		rows = size;
+		model.fireTableRowsInserted(first, size - 1);
+		if (atEnd) table.scrollRectToVisible(table.getCellRect(size - 1, 0, true));
+	}
+
+	/** Stops the updates, the window stays open with all the rows */
+	@Override
+	public void close() {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				timer.stop();
+				refresh();
+			}
+		});
+	}
+}
@@ -0,0 +1,144 @@
+package laser_spot_track4;
+
+import ij.IJ;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Results file written while tracking, so that a crash or a closed ImageJ loses at most the rows of the
+ * last FLUSH_MS. A background thread reads the rows added to the results since its last pass, writes them
+ * as ResultColumns.save() does and forces them to the disk; the tracking thread does no I/O. The first
+ * AUTO_ROWS rows are written together, once they have decided the decimal places of the columns. When the
+ * project is named, the file is complete and is moved to its name instead of being written again.
+ * After a write error, nothing more is written and moveTo() returns false, for the caller to save the
+ * results in the usual way.
+ */
+final class ResultsWriter implements AutoCloseable {
+
+	static final int FLUSH_MS = 1000;
+
+	private final ResultColumns results;
+	private final Path path;
+	private final FileOutputStream stream;
+	private final Writer writer;
+	private final ScheduledThreadPoolExecutor executor;
+	private final String[] row = new String[ResultColumns.HEADINGS.length];
+	// rows written so far
+	private int rows = 0;
+	private boolean closed = false, failed = false;
+
+	private ResultsWriter(Path path, FileOutputStream stream, ResultColumns results) throws IOException {
+		this.path = path;
+		this.stream = stream;
+		this.results = results;
+		writer = new BufferedWriter(new OutputStreamWriter(stream), 1 << 16);
+		ResultColumns.writeRow(writer, ResultColumns.HEADINGS, "\t");
+		flush(false);
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LaserSpotTrack-results");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush(false);
+			}
+		}, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/** Starts the file, or returns null if it cannot be written */
+	static ResultsWriter open(String path, ResultColumns results) {
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(path);
+			return new ResultsWriter(Paths.get(path), stream, results);
+		} catch (IOException e) {
+			IJ.log("The results cannot be written while tracking: " + e.getMessage());
+			if (stream != null) try {
+				stream.close();
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+	}
+
+	String path() {
+		return path.toString();
+	}
+
+	// Writes the new rows and forces them to the disk, the first rows once they are all added or at the end
+	private synchronized void flush(boolean last) {
+		if (closed || failed) return;
+		try {
+			int size = results.size();
+			if (size < ResultColumns.AUTO_ROWS && !last) size = 0;
+			for (; rows < size; rows++) {
+				for (int c = 0; c < row.length; c++) row[c] = results.get(rows, c);
+				ResultColumns.writeRow(writer, row, "\t");
+			}
+			writer.flush();
+			stream.getChannel().force(false);
+		} catch (IOException e) {
+			failed = true;
+			IJ.log("The results cannot be written while tracking: " + e.getMessage());
+		}
+	}
+
+	/** Writes the last rows and closes the file, it stays under its name */
+	@Override
+	public void close() {
+		executor.shutdown();
+		synchronized (this) {
+			if (closed) return;
+			flush(true);
+			closed = true;
+			try {
+				writer.close();
+			} catch (IOException e) {
+				failed = true;
+			}
+		}
+	}
+
+	/** Closes the file and moves it to the path, false if the file is not complete or cannot be moved */
+	boolean moveTo(String target) {
+		close();
+		if (failed) return false;
+		try {
+			try {
+				Files.move(path, Paths.get(target), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(path, Paths.get(target));
+			}
+			return true;
+		} catch (IOException e) {
+			IJ.log("The results cannot be moved to " + target + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/** Deletes the file, for results saved elsewhere */
+	void delete() {
+		close();
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package laser_spot_track4;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Creation times of the images of a sequence, keyed by file name. The times are read by ExifDate,
+ * either all at once by prescan() before tracking, in parallel, or on the first request of every image.
+ * Images without a creation time are remembered as such, so every file is read at most once.
+ */
+final class ShotTimeIndex {
+
+	// cached value of the images without a creation time
+	private static final Instant NONE = Instant.MIN;
+
+	private final String directory;
+	private final ConcurrentHashMap<String, Instant> times = new ConcurrentHashMap<String, Instant>();
+	private final AtomicInteger missing = new AtomicInteger();
+
+	ShotTimeIndex(String directory) {
+		this.directory = directory;
+	}
+
+	/** Reads the creation times of the images with nThreads threads; returns false if interrupted */
+	boolean prescan(List<String> names, int nThreads) {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			for (final String name : names) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						lookup(name);
+					}
+				});
+			}
+			executor.shutdown();
+			return executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Creation time of the image, or null if it has none */
+	Instant get(String name) {
+		Instant time = lookup(name);
+		return time == NONE ? null : time;
+	}
+
+	/** Creation time of an image being analysed, parsed from the image read into memory if it was not read before */
+	Instant get(FrameIngest frame) {
+		String name = new File(frame.path).getName();
+		Instant time = times.get(name);
+		if (time == null) time = put(name, frame.shotTime());
+		return time == NONE ? null : time;
+	}
+
+	/** Number of images read without a creation time */
+	int missing() {
+		return missing.get();
+	}
+
+	private Instant lookup(String name) {
+		Instant time = times.get(name);
+		return time != null ? time : put(name, ExifDate.read(new File(directory, name)));
+	}
+
+	/** Adds the creation time of an image known from elsewhere, null if it has none; returns the time kept */
+	Instant put(String name, Instant time) {
+		if (time == null) time = NONE;
+		Instant previous = times.putIfAbsent(name, time);
+		if (previous != null) return previous;
+		if (time == NONE) missing.incrementAndGet();
+		return time;
+	}
+}
@@ -0,0 +1,79 @@
+package laser_spot_track4;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/*
+ * Locates the laser spot by its intensity centroid instead of template matching.
+ * The spot is the brightest blob of the search window: the pixels above the half maximum
+ * (between the window mean and the peak) around the peak are weighted by their excess over
+ * that level, so a saturated spot is located at the centre of its plateau.
+ * The position is returned like a match result, as the top-left corner of the template
+ * in the window, using the centroid of the spot in the reference template.
+ * The quality is 1 for a spot like the reference one: it is the contrast relative to the
+ * reference (at most 1) times the fraction of the bright pixels that belong to the spot.
+ */
+final class SpotLocator {
+
+	static final double MIN_QUALITY_DEFAULT = 0.5;
+
+	private final double offsetX, offsetY, refContrast;
+	private final int radius;
+
+	/** @param template prepared reference template of the spot, centred on the spot */
+	SpotLocator(ImageProcessor template) {
+		radius = Math.max(1, Math.min(template.getWidth(), template.getHeight()) / 2);
+		double[] c = centroid(template, radius);
+		offsetX = c[0];
+		offsetY = c[1];
+		refContrast = c[2];
+	}
+
+	/** Returns {x, y, quality}, x and y being the template position in the window */
+	double[] locate(ImageProcessor window) {
+		double[] c = centroid(window, radius);
+		double contrast = refContrast > 0 ? Math.min(1.0, c[2] / refContrast) : 0.0;
+		return new double[] {c[0] - offsetX, c[1] - offsetY, contrast * c[3]};
+	}
+
+	// {cx, cy, contrast, fraction of the weight within the radius around the peak}
+	private static double[] centroid(ImageProcessor ip, int radius) {
+
+		FloatProcessor fp = ip instanceof FloatProcessor ? (FloatProcessor) ip : ip.convertToFloatProcessor();
+		float[] pixels = (float[]) fp.getPixels();
+		int w = fp.getWidth(), h = fp.getHeight();
+
+		double sum = 0;
+		float peak = -Float.MAX_VALUE;
+		int peakIndex = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			float v = pixels[i];
+			sum += v;
+			if (v > peak) {
+				peak = v;
+				peakIndex = i;
+			}
+		}
+		double mean = sum / pixels.length, level = (mean + peak) / 2;
+		int px = peakIndex % w, py = peakIndex / w;
+		if (peak <= mean) return new double[] {px, py, 0.0, 0.0};
+
+		double total = 0, sw = 0, swx = 0, swy = 0;
+		int x0 = Math.max(0, px - radius), x1 = Math.min(w - 1, px + radius),
+			y0 = Math.max(0, py - radius), y1 = Math.min(h - 1, py + radius);
+		for (int y = 0; y < h; y++) {
+			boolean rowIn = y >= y0 && y <= y1;
+			for (int x = 0, i = y * w; x < w; x++, i++) {
+				double weight = pixels[i] - level;
+				if (weight <= 0) continue;
+				total += weight;
+				if (rowIn && x >= x0 && x <= x1) {
+					sw += weight;
+					swx += weight * x;
+					swy += weight * y;
+				}
+			}
+		}
+		return new double[] {swx / sw, swy / sw, peak - mean, sw / total};
+	}
+}
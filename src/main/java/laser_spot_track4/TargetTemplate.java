@@ -0,0 +1,71 @@
+package laser_spot_track4;
+
+import ij.ImagePlus;
+import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+
+/*
+ * Reference template of a target, prepared once when the target is selected:
+ * the matcher holding the prepared template and the buffers of the target,
+ * the self-match (ideal) score and the image shown in the overlay.
+ * The reduced template of the coarse-to-fine search is made on first use and kept as well, prepared
+ * in a matcher of the same type for the coarse pass.
+ * The motion predictor follows the displacement of the target from frame to frame.
+ */
+final class TargetTemplate implements AutoCloseable {
+
+	final ImagePlus image;
+	final ImageProcessor overlay;
+	final TemplateMatcher matcher;
+	final double ideal;
+	final MotionPredictor motion = new MotionPredictor();
+	private boolean closed = false;
+	private TemplateMatcher coarse;
+	private int coarseFactor;
+
+	/**
+	 * @param image blurred reference template
+	 * @param matcher matcher of the target, closed with the template
+	 * @param idealMethod matching method used for the self-match score
+	 * @param grayOverlay if true, a 32-bit grayscale copy is shown in the overlay
+	 */
+	TargetTemplate(ImagePlus image, TemplateMatcher matcher, int idealMethod, boolean grayOverlay) {
+		this.image = image;
+		this.matcher = matcher;
+		matcher.setTemplate(image.getProcessor());
+		ideal = matcher.ideal(idealMethod);
+		if (grayOverlay) {
+			ImagePlus gray = image.duplicate();
+			ImageConverter ic = new ImageConverter(gray);
+			ic.convertToGray32();
+			overlay = gray.getProcessor();
+		} else overlay = image.getProcessor();
+	}
+
+	/** Matcher of the template reduced by the pyramid factor, on the tracking thread only */
+	TemplateMatcher coarse(int factor) {
+		// same backend as the matcher of the target
+		if (coarse == null)
+			coarse = TemplateMatcher.create(matcher instanceof JavaMatcher ? TemplateMatcher.JAVA : TemplateMatcher.OPENCV);
+		if (coarseFactor != factor) {
+			ImageProcessor ip = image.getProcessor().duplicate();
+			ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+			coarse.setTemplate(ip.resize(Math.max(1, ip.getWidth() / factor), Math.max(1, ip.getHeight() / factor), true));
+			coarseFactor = factor;
+		}
+		return coarse;
+	}
+
+	/** Bytes of the buffers held by the matchers */
+	long heldBytes() {
+		return matcher.heldBytes() + (coarse == null ? 0 : coarse.heldBytes());
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		matcher.close();
+		if (coarse != null) coarse.close();
+	}
+}
@@ -0,0 +1,45 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/*
+ * Backend computing the result maps of template matching, with the method codes 0-5
+ * of OpenCV's matchTemplate (SQDIFF, SQDIFF_NORMED, CCORR, CCORR_NORMED, CCOEFF, CCOEFF_NORMED).
+ * A matcher belongs to one target: it keeps the prepared template and its buffers from frame
+ * to frame and must not be used by concurrent matches. The peak search and the subpixel
+ * refinement are done on the result map, the same way for every backend.
+ */
+interface TemplateMatcher extends AutoCloseable {
+
+	String OPENCV = "OpenCV", JAVA = "Java";
+	String[] TYPES = {OPENCV, JAVA};
+
+	/** Sets the template matched by the following calls */
+	void setTemplate(ImageProcessor tpl);
+
+	/** Result map of the template over src, or null for unsupported image types. It is reused by the next call */
+	FloatProcessor match(ImageProcessor src, int method);
+
+	/** Score of the template matched on itself */
+	double ideal(int method);
+
+	/** Bytes of the buffers held by the matcher */
+	long heldBytes();
+
+	@Override
+	void close();
+
+	/** Creates a matcher of the given type, the Java matcher is used if OpenCV can not be loaded */
+	static TemplateMatcher create(String type) {
+		if (!JAVA.equals(type)) {
+			try {
+				return new OpenCvMatcher();
+			} catch (LinkageError e) {
+				IJ.log("Laser Spot Track: OpenCV is not available (" + e + "), the Java matcher is used");
+			}
+		}
+		return new JavaMatcher();
+	}
+}
@@ -0,0 +1,138 @@
+package laser_spot_track4;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.ImageRoi;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/*
+ * Overlay of the tracked slice: the templates of the spot and of the four marks at their matches,
+ * their points, the search windows and the trajectory of the spot relative to the first mark.
+ * The template images are ImageRois made once and moved. The trajectory is read from the dX_pix and
+ * dY_pix columns of the results, as rows are added; a point is kept in primitive arrays only when at
+ * least the tolerance (half a screen pixel at the first magnification) away from the last kept point.
+ * When more than MAX_POINTS are kept, the tolerance doubles and the kept points are thinned, so drawing
+ * the trajectory costs the same for any length. The point of the tracked slice is always drawn.
+ */
+final class TrajectoryOverlay {
+
+	static final int SPOT = 0, MARK1 = 1, MARK2 = 2, MARK3 = 3, MARK4 = 4;
+	static final int MAX_POINTS = 4096;
+	// order of the search windows in the overlay
+	private static final int[] WINDOW_ORDER = {MARK1, MARK2, MARK3, MARK4, SPOT};
+
+	private final ImagePlus imp;
+	private final ResultColumns results;
+	// the trajectory is drawn from the reference position of the spot
+	private final double originX, originY;
+	private final Overlay overlay = new Overlay();
+	private final ImageRoi[] templates = new ImageRoi[5];
+	private final double[] pointX = new double[5], pointY = new double[5];
+	private final Roi[] windows = new Roi[5];
+	private float[] xs = new float[256], ys = new float[256];
+	private int kept = 0;
+	// rows of the results read so far
+	private int rows = 0;
+	private double tolerance;
+
+	/**
+	 * @param templateImages the images shown for the spot and the marks 1 to 4
+	 * @param originX reference position of the spot, with originY
+	 */
+	TrajectoryOverlay(ImagePlus imp, ImageProcessor[] templateImages, ResultColumns results, double originX, double originY) {
+		this.imp = imp;
+		this.results = results;
+		this.originX = originX;
+		this.originY = originY;
+		for (int t = 0; t < templates.length; t++) {
+			templates[t] = new ImageRoi(0, 0, templateImages[t]);
+			templates[t].setOpacity(0.3);
+		}
+		ImageCanvas canvas = imp.getCanvas();
+		tolerance = 0.5 / (canvas != null ? canvas.getMagnification() : 1.0);
+	}
+
+	// Reads the rows added to the results
+	private void update() {
+		for (int size = results.size(); rows < size; rows++)
+			addPoint((float) (originX + results.value(rows, ResultColumns.DX)),
+					(float) (originY + results.value(rows, ResultColumns.DY)));
+	}
+
+	private void addPoint(float x, float y) {
+
+		if (kept > 0 && distance(xs[kept - 1], ys[kept - 1], x, y) < tolerance) return;
+		if (kept == xs.length) {
+			xs = Arrays.copyOf(xs, 2 * kept);
+			ys = Arrays.copyOf(ys, 2 * kept);
+		}
+		xs[kept] = x;
+		ys[kept] = y;
+		kept++;
+		while (kept > MAX_POINTS) thin();
+	}
+
+	// Doubles the tolerance and keeps the points that far from the previous kept one
+	private void thin() {
+		tolerance *= 2;
+		int n = 1;
+		for (int i = 1; i < kept; i++) {
+			// the last point stays, it ends the trajectory
+			if (i < kept - 1 && distance(xs[n - 1], ys[n - 1], xs[i], ys[i]) < tolerance) continue;
+			xs[n] = xs[i];
+			ys[n] = ys[i];
+			n++;
+		}
+		kept = n;
+	}
+
+	private static double distance(float x0, float y0, float x1, float y1) {
+		double dx = x1 - x0, dy = y1 - y0;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/** Places the template of the target at (x, y) and its point at (px, py) */
+	void setTarget(int target, int x, int y, double px, double py) {
+		templates[target].setLocation(x, y);
+		pointX[target] = px;
+		pointY[target] = py;
+	}
+
+	void setSearchWindow(int target, int x, int y, int width, int height) {
+		windows[target] = new Roi(x, y, width, height);
+	}
+
+	/**
+	 * Shows the overlay on the image, with the trajectory shifted by the displacement (dx, dy) of the first mark.
+	 * The trajectory ends at (dX, dY), the position of the spot relative to the first mark in the tracked slice.
+	 */
+	void show(double dX, double dY, double dx, double dy) {
+
+		overlay.clear();
+		for (int t = 0; t < templates.length; t++) {
+			overlay.add(templates[t]);
+			PointRoi point = new PointRoi(pointX[t], pointY[t]);
+			point.setPointType(3);
+			overlay.add(point);
+		}
+		for (int t : WINDOW_ORDER) if (windows[t] != null) overlay.add(windows[t]);
+
+		update();
+		int n = kept + 1;
+		float[] x = new float[n], y = new float[n];
+		for (int i = 0; i < kept; i++) {
+			x[i] = (float) (xs[i] + dx);
+			y[i] = (float) (ys[i] + dy);
+		}
+		x[kept] = (float) (originX + dX + dx);
+		y[kept] = (float) (originY + dY + dy);
+		overlay.add(new PolygonRoi(x, y, Roi.FREELINE));
+		imp.setOverlay(overlay);
+	}
+}
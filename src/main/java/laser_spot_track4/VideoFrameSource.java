@@ -0,0 +1,203 @@
+package laser_spot_track4;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+
+/*
+ * Frames of the video decoded for the tracking loop by a FFmpegFrameGrabber of its own, instead of
+ * the virtual stack of the FFmpeg_Video plugin, so that tracking with a step decodes only what the
+ * step needs. Frames up to the requested one are grabbed without the conversion to an image; when
+ * a keyframe lies between the current position and the requested frame, or the frame is before the
+ * current position, the grabber seeks to the keyframe preceding it instead. The keyframe interval is
+ * the largest one seen between keyframes grabbed in sequence. If seeking does not land on the frame of the slice, the video is
+ * only read sequentially. A frame is returned only if its time stamp is the one of the slice label,
+ * otherwise get() returns null and the slice is read from the stack.
+ * For matching on intensity the decoder converts the frames to 8-bit luminance, so the RGB
+ * frames are neither converted nor copied to Java. The RGB frames read from the stack instead are
+ * converted by luma() to the same limited range luminance, so that all frames of a run share one scale.
+ */
+final class VideoFrameSource implements AutoCloseable {
+
+	private final FFmpegFrameGrabber grabber;
+	private final int width, height;
+	private final boolean gray;
+	// time stamps of the slice labels in microseconds
+	private final long[] times;
+	// largest difference of the time stamps of a frame and its slice label, in microseconds
+	private final long tolerance;
+	// seek when a keyframe is expected that far ahead, while the keyframe interval is unknown
+	private final int seekDistance;
+	// slice of the frame the next grab returns, 0 if not known
+	private int next = 1;
+	// last keyframe grabbed in sequence and the largest interval between keyframes, 0 if not known
+	private int lastKey = 0, keyInterval = 0;
+	private boolean seekable = true;
+
+	private VideoFrameSource(FFmpegFrameGrabber grabber, ImageStack stack, long[] times, boolean gray) {
+		this.grabber = grabber;
+		this.gray = gray;
+		this.times = times;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 25.0;
+		tolerance = Math.max(1000L, Math.round(500000.0 / frameRate));
+		seekDistance = (int) Math.max(2, Math.round(2 * frameRate));
+	}
+
+	/**
+	 * Opens the video file of the stack opened by the FFmpeg_Video plugin.
+	 * Returns null if the file cannot be decoded here to the frames of the stack.
+	 * @param gray if true, the frames are 8-bit luminance images whatever the stack type
+	 */
+	static VideoFrameSource open(String path, ImageStack stack, boolean gray) {
+
+		if (path == null || !new File(path).isFile() || (stack.getBitDepth() != 24 && stack.getBitDepth() != 8)) return null;
+		FFmpegFrameGrabber grabber = null;
+		try {
+			long[] times = new long[stack.getSize()];
+			for (int i = 0; i < times.length; i++) {
+				// time stamps of the labels "t s", in the order of the frames
+				times[i] = Math.round(Double.parseDouble(stack.getSliceLabel(i + 1).replaceAll(" s", "")) * 1000000);
+				if (i > 0 && times[i] <= times[i - 1]) return null;
+			}
+			grabber = new FFmpegFrameGrabber(path);
+			if (gray || stack.getBitDepth() == 8) grabber.setImageMode(FFmpegFrameGrabber.ImageMode.GRAY);
+			grabber.start();
+			if (grabber.getImageWidth() != stack.getWidth() || grabber.getImageHeight() != stack.getHeight()) {
+				grabber.release();
+				return null;
+			}
+			return new VideoFrameSource(grabber, stack, times, gray || stack.getBitDepth() == 8);
+		} catch (Exception | LinkageError e) {
+			IJ.log("Laser Spot Track: the video frames are read from the stack (" + e.getMessage() + ")");
+			try {
+				if (grabber != null) grabber.release();
+			} catch (Exception e1) {
+			}
+			return null;
+		}
+	}
+
+	/** Frame of the slice, or null if it cannot be decoded here */
+	ImageProcessor get(int slice) {
+
+		try {
+			if (seekable && needsSeek(slice)) {
+				grabber.setVideoTimestamp(times[slice - 1]);
+				// keyframes were skipped
+				lastKey = 0;
+				Frame frame = grab(true);
+				if (next == slice + 1) return convert(frame);
+				// the grabber may stop a frame early, otherwise the time stamps are not exact
+				if (next == 0 || next > slice) seekable = false;
+			}
+			if (next == 0 || slice < next) {
+				grabber.restart();
+				next = 1;
+				lastKey = 0;
+			}
+			while (next < slice) {
+				if (grab(false) == null) return null;
+			}
+			Frame frame = grab(true);
+			return frame != null && next == slice + 1 ? convert(frame) : null;
+		} catch (Exception e) {
+			next = 0;
+			return null;
+		}
+	}
+
+	/** True if the frames are 8-bit luminance */
+	boolean gray() {
+		return gray;
+	}
+
+	/** Luminance of an RGB frame as the decoder gives it: BT.601, limited range 16-235 */
+	static ByteProcessor luma(ColorProcessor cp) {
+		int[] rgb = (int[]) cp.getPixels();
+		byte[] y = new byte[rgb.length];
+		for (int i = 0; i < rgb.length; i++) {
+			int c = rgb[i], r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff;
+			y[i] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+		}
+		return new ByteProcessor(cp.getWidth(), cp.getHeight(), y);
+	}
+
+	// A keyframe lies between the current position and the slice, or the slice is behind
+	private boolean needsSeek(int slice) {
+		if (next == 0 || slice < next) return true;
+		return slice - next >= (keyInterval > 0 ? keyInterval : seekDistance);
+	}
+
+	// Grabs the next frame, converted to an image if asked, and finds its slice from the time stamp
+	private Frame grab(boolean image) throws Exception {
+
+		Frame frame = grabber.grabFrame(false, true, image, false, false);
+		int slice = frame != null ? sliceAt(frame.timestamp) : 0;
+		if (slice == 0) {
+			next = 0;
+			return null;
+		}
+		if (frame.keyFrame) {
+			if (lastKey > 0 && slice > lastKey) keyInterval = Math.max(keyInterval, slice - lastKey);
+			lastKey = slice;
+		}
+		next = slice + 1;
+		return frame;
+	}
+
+	// Slice with the time stamp, 0 if there is none
+	private int sliceAt(long timestamp) {
+		int i = Arrays.binarySearch(times, timestamp);
+		if (i < 0) {
+			i = -i - 1;
+			if (i == times.length || (i > 0 && timestamp - times[i - 1] < times[i] - timestamp)) i--;
+		}
+		return Math.abs(times[i] - timestamp) <= tolerance ? i + 1 : 0;
+	}
+
+	private ImageProcessor convert(Frame frame) {
+
+		if (frame.image == null || frame.imageDepth != Frame.DEPTH_UBYTE || frame.imageWidth != width || frame.imageHeight != height)
+			return null;
+		ByteBuffer buffer = (ByteBuffer) frame.image[0];
+		int stride = frame.imageStride;
+		if (frame.imageChannels == 1) {
+			byte[] pixels = new byte[width * height];
+			for (int y = 0; y < height; y++) {
+				buffer.position(y * stride);
+				buffer.get(pixels, y * width, width);
+			}
+			return new ByteProcessor(width, height, pixels);
+		}
+		if (frame.imageChannels != 3) return null;
+		int[] pixels = new int[width * height];
+		byte[] row = new byte[3 * width];
+		for (int y = 0, i = 0; y < height; y++) {
+			buffer.position(y * stride);
+			buffer.get(row);
+			// BGR
+			for (int x = 0; x < 3 * width; x += 3)
+				pixels[i++] = 0xff000000 | (row[x + 2] & 0xff) << 16 | (row[x + 1] & 0xff) << 8 | (row[x] & 0xff);
+		}
+		return new ColorProcessor(width, height, pixels);
+	}
+
+	@Override
+	public void close() {
+		try {
+			grabber.release();
+		} catch (Exception e) {
+		}
+	}
+}